@@ -0,0 +1,153 @@
+package ru.sxtim.chat.bench;
+
+import ru.sxtim.chat.network.Histogram;
+import ru.sxtim.chat.network.TCPConnection;
+import ru.sxtim.chat.network.TCPConnectionListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** LoadGenerator - нагрузочный клиент без окна: много TCPConnection к запущенному серверу;
+ *  Все клиенты входят в одну комнату, и генератор с заданной общей скоростью шлет сообщения
+ *  от клиентов по очереди. Каждое сообщение несет время, когда его полагалось отправить по графику,
+ *  поэтому задержка считается от графика, а не от фактической отправки: если генератор
+ *  или сервер отстали, это видно в задержке, а не прячется (coordinated omission).
+ *  Сервер рассылает сообщение всем участникам комнаты, то есть каждое отправленное приходит clients раз.
+ *  Настройки - системные свойства:
+ *  -Dload.host=127.0.0.1 -Dload.port=8189 -Dload.clients=1000 -Dload.rate=1000 (сообщений в секунду всего)
+ *  -Dload.seconds=30 -Dload.warmupSeconds=5 -Dload.room=load -Dload.binary=false -Dload.length=64
+ *  Тысячи клиентов - это тысячи пар потоков TCPConnection; на JDK 21 лучше -Dchat.threads=virtual.
+ */
+public final class LoadGenerator implements TCPConnectionListener {
+    //========Fields===========
+    private static final String HOST = System.getProperty("load.host", "127.0.0.1");
+    private static final int PORT = Integer.getInteger("load.port", 8189);
+    private static final int CLIENTS = Integer.getInteger("load.clients", 1000);
+    private static final int RATE = Integer.getInteger("load.rate", 1000);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 5);
+    private static final String ROOM = System.getProperty("load.room", "load");
+    private static final boolean BINARY = Boolean.getBoolean("load.binary");
+    private static final int LENGTH = Integer.getInteger("load.length", 64);
+    // начало наших сообщений: "lg <номер запуска> <время по графику> <заполнитель>"
+    private static final String PREFIX = "lg ";
+
+    // чужие сообщения и история комнаты от прошлых запусков отсеиваются по номеру запуска
+    private final String runTag = PREFIX + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ' ';
+    private final String padding;
+    private final AtomicInteger ready = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    // задержки сообщений, которые по графику отправлены после прогрева
+    private final Histogram latency = new Histogram();
+    // начало замера по System.nanoTime(); до старта генератора замера нет
+    private volatile long measureStart = Long.MAX_VALUE;
+
+    //=============Constructors============
+    private LoadGenerator() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < LENGTH) sb.append('x');
+        padding = sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        new LoadGenerator().run();
+    }
+
+    // =======Functions=======
+
+    private void run() throws IOException {
+        System.out.printf("Connecting %d clients to %s:%d (%s), room %s%n", CLIENTS, HOST, PORT, BINARY ? "binary" : "text", ROOM);
+        List<TCPConnection> clients = new ArrayList<>(CLIENTS);
+        for (int i = 0; i < CLIENTS; i++) {
+            TCPConnection connection = new TCPConnection(this, HOST, PORT, BINARY);
+            connection.sendString("/join " + ROOM);
+            clients.add(connection);
+        }
+        // ждем, пока все подключатся, и даем серверу разослать уведомления о входе
+        while (ready.get() < CLIENTS) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, RATE);
+        final long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        final long end = measureStart + TimeUnit.SECONDS.toNanos(SECONDS);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastSent = 0, lastReceived = 0;
+        long intended = start;
+        int next = 0;
+        long measuredSent = 0;
+        while (intended < end) {
+            long now = System.nanoTime();
+            if (intended > now) LockSupport.parkNanos(intended - now);
+            clients.get(next).sendString(runTag + intended + ' ' + padding);
+            sent.increment();
+            if (intended >= measureStart) measuredSent++;
+            next = (next + 1) % CLIENTS;
+            intended += intervalNanos;
+
+            if (System.nanoTime() >= nextReport) {
+                long s = sent.sum(), r = received.sum();
+                System.out.printf("%s sent %d/s, delivered %d/s, errors %d%n",
+                        intended >= measureStart ? "measure" : "warmup ", s - lastSent, r - lastReceived, errors.sum());
+                lastSent = s;
+                lastReceived = r;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+        // ждем хвост доставки
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(2));
+        report(measuredSent);
+        for (TCPConnection connection : clients) connection.disconnect();
+    }
+
+    private void report(long measuredSent) {
+        Histogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("%nClients %d, measured %d s%n", CLIENTS, SECONDS);
+        System.out.printf("Sent       %d (%.0f msg/s)%n", measuredSent, measuredSent / (double) SECONDS);
+        System.out.printf("Delivered  %d (%.0f msg/s), expected %d%n",
+                snapshot.getCount(), snapshot.getCount() / (double) SECONDS, measuredSent * CLIENTS);
+        System.out.printf("Latency us p50 %d  p99 %d  p999 %d  max %d  mean %d%n",
+                micros(snapshot.percentile(50)), micros(snapshot.percentile(99)), micros(snapshot.percentile(99.9)),
+                micros(snapshot.getMax()), micros(snapshot.getMean()));
+        System.out.printf("Errors     %d%n", errors.sum());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    // =======События клиентов=======
+
+    @Override
+    public void onConnectionReady(TCPConnection tcpConnection) {
+        ready.incrementAndGet();
+    }
+
+    @Override
+    public void onReceiveString(TCPConnection tcpConnection, String value) {
+        if (!value.startsWith(runTag)) return;
+        final long now = System.nanoTime();
+        int from = runTag.length();
+        int space = value.indexOf(' ', from);
+        long intended = Long.parseLong(value.substring(from, space < 0 ? value.length() : space));
+        received.increment();
+        if (intended >= measureStart) latency.record(now - intended);
+    }
+
+    @Override
+    public void onDisconnect(TCPConnection tcpConnection) {
+    }
+
+    @Override
+    public void onException(TCPConnection tcpConnection, Exception e) {
+        errors.increment();
+    }
+}
@@ -0,0 +1,84 @@
+package ru.sxtim.chat.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/** LoopbackPeers - много "клиентов" на одном потоке для бенчмарков;
+ *  Открывает count соединений к серверу на localhost и читает из них все, что приходит,
+ *  одним Selector-потоком, ничего не разбирая. Так сервер пишет в настоящие сокеты,
+ *  а на стороне клиентов не нужно по два потока на соединение, как у TCPConnection.
+ */
+public final class LoopbackPeers implements Closeable, Runnable {
+    //========Fields===========
+    private final Selector selector;
+    private final List<SocketChannel> channels = new ArrayList<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final LongAdder bytesRead = new LongAdder();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    //=============Constructors============
+    public LoopbackPeers(int port, int count) throws IOException {
+        selector = Selector.open();
+        for (int i = 0; i < count; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            channels.add(channel);
+        }
+        thread = new Thread(this, "loopback-peers");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // =======Functions=======
+
+    // сколько байт получили все соединения вместе
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(100);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    readBuffer.clear();
+                    int n = ((SocketChannel) key.channel()).read(readBuffer);
+                    if (n < 0) key.cancel();
+                    else bytesRead.add(n);
+                }
+            }
+        } catch (IOException e) {
+            if (running) System.out.println("LoopbackPeers exception: " + e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SocketChannel channel : channels) channel.close();
+        selector.close();
+    }
+}
@@ -0,0 +1,122 @@
+package ru.sxtim.chat.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/** ReceiveBenchmark - путь приема без сокета: InboundDecoder режет готовый буфер чтения
+ *  из COUNT строчек или кадров и отдает их слушателю соединения.
+ *  Текст превращается в String (как у любого слушателя), кадр отдается срезом без копирования
+ *  (как у сервера). Соединение настоящее, но его собственный поток чтения в замере не участвует.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReceiveBenchmark {
+    //========Fields===========
+    // сообщений в одном буфере чтения
+    private static final int COUNT = 64;
+
+    @Param({"16", "256"})
+    public int length;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private ServerSocket serverSocket;
+    private Socket client;
+    private TCPConnection connection;
+    private InboundDecoder decoder;
+    private ByteBuffer input;
+    // куда слушатель отдает принятое; ставится на время вызова
+    private volatile Blackhole sink;
+
+    // =======Functions=======
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char) ('a' + i % 26));
+        byte[] payload = new byte[Utf8.encodedLength(sb.toString())];
+        Utf8.encode(sb.toString(), payload, 0);
+        byte[] line = Arrays.copyOf(payload, payload.length + 1);
+        line[payload.length] = '\n';
+
+        ByteBuffer frame = Frame.encode(Frame.TEXT, 1, 0, payload);
+        input = ByteBuffer.allocateDirect(COUNT * Math.max(line.length, frame.remaining()));
+        for (int i = 0; i < COUNT; i++) {
+            if (binary) input.put(frame.duplicate());
+            else input.put(line);
+        }
+        input.flip();
+
+        serverSocket = new ServerSocket(0);
+        client = new Socket("127.0.0.1", serverSocket.getLocalPort());
+        connection = new TCPConnection(new Listener(), serverSocket.accept());
+        decoder = new InboundDecoder(connection);
+        // переводим декодер в бинарный режим так же, как это делает клиент
+        if (binary) decoder.decode(Frame.hello());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        connection.disconnect();
+        client.close();
+        serverSocket.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COUNT)
+    public void decode(Blackhole blackhole) throws IOException {
+        sink = blackhole;
+        decoder.decode(input.duplicate());
+    }
+
+    private final class Listener implements TCPConnectionListener {
+        @Override
+        public void onConnectionReady(TCPConnection tcpConnection) {
+        }
+
+        @Override
+        public void onReceiveString(TCPConnection tcpConnection, String value) {
+            Blackhole blackhole = sink;
+            if (blackhole != null) blackhole.consume(value);
+        }
+
+        @Override
+        public void onReceiveFrame(TCPConnection tcpConnection, byte type, long senderId, long seq, ByteBuffer payload) {
+            Blackhole blackhole = sink;
+            if (blackhole != null) blackhole.consume(payload);
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection tcpConnection) {
+        }
+
+        @Override
+        public void onException(TCPConnection tcpConnection, Exception e) {
+        }
+    }
+}
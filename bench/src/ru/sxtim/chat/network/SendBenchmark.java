@@ -0,0 +1,129 @@
+package ru.sxtim.chat.network;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** SendBenchmark - TCPConnection.sendString() на паре соединений через localhost;
+ *  enqueue - сколько стоит вызов для того, кто отправляет (кодирование в UTF-8 и очередь; запись идет в txThread).
+ *  Вызов ставит BATCH сообщений в пустую очередь: BATCH меньше ее емкости, поэтому замеряется постановка
+ *  в очередь, а не политика переполнения. Ожидание, пока писатель разберет очередь, в замер не входит.
+ *  roundTrip - сквозная пропускная способность: BATCH сообщений отправляем и ждем, пока другая
+ *  сторона их все примет и разберет, - писатель, сокет, чтение и InboundDecoder вместе.
+ *  binary = true - кадры Frame вместо строчек.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendBenchmark {
+    //========Fields===========
+    private static final int BATCH = 512;
+
+    @Param({"16", "256"})
+    public int length;
+
+    @Param({"false", "true"})
+    public boolean binary;
+
+    private ServerSocket serverSocket;
+    private TCPConnection sender;
+    private TCPConnection receiver;
+    private String message;
+    // сколько сообщений приняла другая сторона
+    private final AtomicLong received = new AtomicLong();
+    private long expected;
+
+    // =======Functions=======
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append((char) ('a' + i % 26));
+        message = sb.toString();
+
+        serverSocket = new ServerSocket(0);
+        sender = new TCPConnection(new Listener(null), "127.0.0.1", serverSocket.getLocalPort(), binary);
+        Socket accepted = serverSocket.accept();
+        receiver = new TCPConnection(new Listener(received), accepted);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.disconnect();
+        receiver.disconnect();
+        serverSocket.close();
+    }
+
+    // перед каждым вызовом очередь отправки пуста (Level.Invocation - вне замера)
+    @Setup(Level.Invocation)
+    public void drain() {
+        while (sender.getQueueDepth() > 0) Thread.onSpinWait();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void enqueue() {
+        for (int i = 0; i < BATCH; i++) sender.sendString(message);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void roundTrip() {
+        // то, что оставил enqueue, не считаем
+        expected = received.get() + BATCH;
+        for (int i = 0; i < BATCH; i++) sender.sendString(message);
+        while (received.get() < expected) Thread.onSpinWait();
+    }
+
+    // считает принятые строчки и кадры; кадры не превращает в String, как и сервер
+    private static final class Listener implements TCPConnectionListener {
+        private final AtomicLong received;
+
+        Listener(AtomicLong received) {
+            this.received = received;
+        }
+
+        @Override
+        public void onConnectionReady(TCPConnection tcpConnection) {
+        }
+
+        @Override
+        public void onReceiveString(TCPConnection tcpConnection, String value) {
+            if (received != null) received.incrementAndGet();
+        }
+
+        @Override
+        public void onReceiveFrame(TCPConnection tcpConnection, byte type, long senderId, long seq, ByteBuffer payload) {
+            if (received != null) received.incrementAndGet();
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection tcpConnection) {
+        }
+
+        @Override
+        public void onException(TCPConnection tcpConnection, Exception e) {
+        }
+    }
+}
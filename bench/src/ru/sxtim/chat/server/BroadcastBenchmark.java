@@ -0,0 +1,96 @@
+package ru.sxtim.chat.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.sxtim.chat.bench.LoopbackPeers;
+import ru.sxtim.chat.network.NioServer;
+import ru.sxtim.chat.network.OutboundMessage;
+import ru.sxtim.chat.network.TCPConnection;
+import ru.sxtim.chat.network.TCPConnectionListener;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/** BroadcastBenchmark - рассылка одного сообщения комнате из fanOut участников (Room.broadcast,
+ *  через который теперь идет бывший ChatServer.sendToAllConnections);
+ *  Участники - настоящие соединения NioServer, их читает один поток LoopbackPeers.
+ *  Замеряется то, что платит поток отправителя: номер, история и send() в очередь каждого участника.
+ *  Если писатели не успевают, срабатывает политика переполнения очереди - ее цена тоже входит в замер.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    //========Fields===========
+    @Param({"1", "10", "100", "1000"})
+    public int fanOut;
+
+    private NioServer server;
+    private LoopbackPeers peers;
+    private Room room;
+    private final List<TCPConnection> members = new CopyOnWriteArrayList<>();
+    private OutboundMessage message;
+
+    // =======Functions=======
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        server = new NioServer(new Members(), 0, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        Thread acceptThread = new Thread(server::run, "bench-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        peers = new LoopbackPeers(server.getPort(), fanOut);
+        while (members.size() < fanOut) Thread.sleep(10);
+
+        room = new Room("bench", null);
+        for (TCPConnection member : members) room.add(member);
+        message = OutboundMessage.text(0, "bench: the quick brown fox jumps over the lazy dog");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        peers.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        room.broadcast(message);
+    }
+
+    // собирает принятые сервером соединения
+    private final class Members implements TCPConnectionListener {
+        @Override
+        public void onConnectionReady(TCPConnection tcpConnection) {
+            members.add(tcpConnection);
+        }
+
+        @Override
+        public void onReceiveString(TCPConnection tcpConnection, String value) {
+        }
+
+        @Override
+        public void onDisconnect(TCPConnection tcpConnection) {
+        }
+
+        @Override
+        public void onException(TCPConnection tcpConnection, Exception e) {
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package ru.sxtim.chat.client;
 
-import org.w3c.dom.ls.LSOutput;
 import ru.sxtim.chat.network.TCPConnection;
 import ru.sxtim.chat.network.TCPConnectionListener;
 
 import javax.swing.*;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /** Так как со Swing можно работать только из потока EDT
@@ -35,6 +39,10 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
     private static final int PORT = 8189;
     private static final int WIDTH = 600;
     private static final int HEIGHT = 150;
+    // сколько последних строк храним в окне (-Dchat.client.maxLines), старые обрезаем
+    private static final int MAX_LINES = Math.max(1, Integer.getInteger("chat.client.maxLines", 1000));
+    // раз в сколько мс выводим накопившиеся строчки - примерно один кадр при 60 Гц
+    private static final int FRAME_MILLIS = 16;
     private TCPConnection connection;
 
     // фрейм
@@ -47,6 +55,12 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
     private final JTextField fieldNickName = new JTextField("BOB");
     // поле сообщения
     private final JTextField fieldInputMsg = new JTextField("Message: ");
+    // строчки, которые пришли из потоков соединения и еще не выведены
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    // true, пока вывод уже запланирован - следующие строчки просто дожидаются его в очереди
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // одноразовый таймер: срабатывает в потоке EDT через FRAME_MILLIS после первой строчки
+    private final Timer flushTimer = new Timer(FRAME_MILLIS, e -> flushPending());
 
     // Constructors
 
@@ -57,6 +71,7 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
         frame.setAlwaysOnTop(true);
         chatLog.setEditable(false);//запрет редактирования
         chatLog.setLineWrap(true);// перенос слов
+        flushTimer.setRepeats(false);
         scroll = new JScrollPane (chatLog);
         frame.add(fieldNickName, BorderLayout.NORTH);
         //добавляем себя, чтобы перехватывать нажатия Enter
@@ -79,21 +94,45 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
     }
 
     // пишем в текстовое поле
-    // будет работать из разных потоков
-    private synchronized void printMsg(String msg){
-        // так как работать будет из разных потоков
-        // в методе invokeLater() создаем экземпляр анонимного класса и реализуем метод runnable()
-        // выполняем в потоке окна
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                // добавляем строчку которая к нам прилетела
-                chatLog.append(msg + "\n");
-                // для автоматического автоскролла устанавливаем каретку в самый конец документа
-                chatLog.setCaretPosition(chatLog.getText().length());
+    // будет работать из разных потоков, поэтому строчку только кладем в очередь,
+    // а в окно она попадет вместе с остальными за один проход flushPending() в потоке EDT
+    private void printMsg(String msg){
+        pending.add(msg);
+        if (flushScheduled.compareAndSet(false, true)) flushTimer.start();
+    }
 
-            }
-        });
+    // выполняется в потоке окна: выводим все накопившиеся строчки одним append
+    private void flushPending() {
+        // снимаем флаг до чтения очереди - строчка, пришедшая во время вывода, запланирует новый
+        flushScheduled.set(false);
+        // если за кадр пришло больше MAX_LINES строчек - старые все равно будут обрезаны, их не выводим
+        ArrayDeque<String> lines = new ArrayDeque<>();
+        String msg;
+        while ((msg = pending.poll()) != null) {
+            if (lines.size() == MAX_LINES) lines.pollFirst();
+            lines.addLast(msg);
+        }
+        if (lines.isEmpty()) return;
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) sb.append(line).append('\n');
+        chatLog.append(sb.toString());
+        trimLog();
+        // для автоматического автоскролла устанавливаем каретку в самый конец документа;
+        // getLength() не копирует текст, в отличие от getText().length()
+        chatLog.setCaretPosition(chatLog.getDocument().getLength());
+    }
+
+    // удаляем самые старые строчки сверх MAX_LINES
+    private void trimLog() {
+        // после последнего '\n' всегда есть пустая строка - ее не считаем
+        int excess = chatLog.getLineCount() - 1 - MAX_LINES;
+        if (excess <= 0) return;
+        try {
+            Document doc = chatLog.getDocument();
+            doc.remove(0, chatLog.getLineStartOffset(excess));
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
@@ -109,8 +148,9 @@ public class ClientWindow extends JFrame implements ActionListener, TCPConnectio
         if(msg.equals("")) return;
         // если строчка не пустая, то стираем то, что находится в поле fieldsInputMsg
         fieldInputMsg.setText(null);
-        //  в соединение передаем строчку
-        connection.sendString(fieldNickName.getText() + ": " + msg);
+        //  в соединение передаем строчку; команды серверу (/join, /leave, /rooms) - без ника
+        if (msg.startsWith("/")) connection.sendString(msg);
+        else connection.sendString(fieldNickName.getText() + ": " + msg);
 
     }
 
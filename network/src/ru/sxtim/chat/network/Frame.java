@@ -0,0 +1,59 @@
+package ru.sxtim.chat.network;
+
+import java.nio.ByteBuffer;
+
+/** Frame - бинарный протокол с длиной в начале кадра (рядом со старым текстовым протоколом "строчка + \n");
+ *  Формат кадра (big-endian):
+ *  <pre>
+ *  int  length    - сколько байт идет после этого поля (1 + 8 + 8 + длина payload = HEADER_SIZE + payload)
+ *  byte type      - тип кадра (TEXT, ...)
+ *  long senderId  - от кого сообщение (TCPConnection.getId() на сервере, 0 - от самого сервера)
+ *  long seq       - номер сообщения в комнате (растет без пропусков), 0 - сообщение без номера
+ *  byte[] payload - данные; у TEXT это строчка в UTF-8, в ней можно передавать и '\n'
+ *  </pre>
+ *  Договоренность при подключении: клиент, который хочет бинарный протокол, первым делом шлет HELLO.
+ *  HELLO начинается с байта 0, а текстовая строчка с него начаться не может - поэтому старые клиенты
+ *  со "строчками" работают как раньше. Сервер отвечает тем же HELLO: все, что пришло клиенту до него, -
+ *  строчки, после него - кадры.
+ *  Heartbeat: PING просит собеседника ответить PONG. В текстовом протоколе это строчки из одного
+ *  управляющего символа (TEXT_PING, TEXT_PONG). Их разбирает само соединение, до слушателя они не доходят.
+ *  PING шлем и таймаут чтения применяем только к собеседнику, который сам прислал HELLO, PING или PONG
+ *  (или к серверу, к которому подключились сами): старый текстовый клиент не увидит лишних строчек.
+ */
+public final class Frame {
+    //========Fields===========
+    // типы кадров
+    public static final byte TEXT = 1;
+    public static final byte PING = 2;
+    public static final byte PONG = 3;
+
+    // PING и PONG в текстовом протоколе: строчка из одного байта ENQ / ACK
+    static final byte TEXT_PING = 0x05;
+    static final byte TEXT_PONG = 0x06;
+
+    // приветствие бинарного протокола: 0, 'C', 'H', версия
+    static final byte[] HELLO = {0, 'C', 'H', 1};
+    // длина заголовка после поля length: type + senderId + seq
+    static final int HEADER_SIZE = 1 + 8 + 8;
+    // защита от кадра на гигабайт (-Dchat.frame.maxLength)
+    static final int MAX_LENGTH = Integer.getInteger("chat.frame.maxLength", 1024 * 1024);
+
+    private static final ByteBuffer HELLO_BUFFER = ByteBuffer.wrap(HELLO).asReadOnlyBuffer();
+
+    private Frame() {
+    }
+
+    // =======Functions=======
+
+    // свежая копия HELLO со своей позицией
+    static ByteBuffer hello() {
+        return HELLO_BUFFER.duplicate();
+    }
+
+    // кодирует кадр в direct буфер только для чтения
+    static ByteBuffer encode(byte type, long senderId, long seq, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocateDirect(4 + HEADER_SIZE + payload.length);
+        frame.putInt(HEADER_SIZE + payload.length).put(type).putLong(senderId).putLong(seq).put(payload).flip();
+        return frame.asReadOnlyBuffer();
+    }
+}
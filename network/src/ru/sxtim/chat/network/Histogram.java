@@ -0,0 +1,103 @@
+package ru.sxtim.chat.network;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Histogram - гистограмма задержек (в наносекундах) без блокировок;
+ *  Значения раскладываются по логарифмическим корзинам: 8 корзин на каждую степень двойки,
+ *  то есть погрешность процентиля не больше 12.5%, а памяти - несколько сотен счетчиков на всю гистограмму.
+ *  Каждая корзина - LongAdder, поэтому запись из многих потоков сразу почти не конкурирует.
+ *  Процентили считаются по снимку корзин в момент чтения, запись при этом не останавливается.
+ */
+public final class Histogram {
+    //========Fields===========
+    // корзин на одну степень двойки (2^SUB_BITS)
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // 0..7 - точные значения, дальше по 8 корзин на степени 2^3..2^62
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    //=============Constructors============
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) counts[i] = new LongAdder();
+    }
+
+    // =======Functions=======
+
+    /** Записать значение; отрицательные считаются нулем */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[bucket(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /** Снимок для чтения процентилей */
+    public Snapshot snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        return new Snapshot(snapshot, total, sum.sum(), max.get());
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    // наибольшее значение, которое попадает в корзину
+    private static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    /** Неизменяемый снимок гистограммы */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /** Значение, не больше которого percentile процентов записей (например, 99.9) */
+        public long percentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(bucketUpperBound(i), max);
+            }
+            return max;
+        }
+    }
+}
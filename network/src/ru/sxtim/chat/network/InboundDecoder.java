@@ -0,0 +1,151 @@
+package ru.sxtim.chat.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/** InboundDecoder - разбирает входящие байты соединения на строчки или кадры (Frame);
+ *  Байты приходят кусками произвольной длины, поэтому незаконченную строчку или кадр храним до следующего чтения.
+ *  Буфер выделяется лениво - у простаивающего соединения он пустой.
+ *  Соединение начинается в текстовом режиме; байт 0 в начале строчки - это Frame.HELLO,
+ *  после него весь поток - кадры.
+ */
+final class InboundDecoder {
+    //========Fields===========
+    private static final byte[] EMPTY = new byte[0];
+    // защита от клиента, который шлет байты без перевода строки
+    static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final int TEXT = 0;
+    private static final int HELLO = 1;
+    private static final int BINARY = 2;
+
+    private final TCPConnection connection;
+    private int state = TEXT;
+    // сколько байт HELLO уже сверили
+    private int helloRead;
+    // накопленный хвост незаконченной строчки или кадра
+    private byte[] buf = EMPTY;
+    private int len;
+
+    //=============Constructors============
+    InboundDecoder(TCPConnection connection) {
+        this.connection = connection;
+    }
+
+    // =======Functions=======
+
+    // разбираем все что есть в src и отдаем готовые строчки и кадры соединению
+    void decode(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            switch (state) {
+                case TEXT:
+                    decodeText(src);
+                    break;
+                case HELLO:
+                    decodeHello(src);
+                    break;
+                default:
+                    decodeFrames(src);
+            }
+        }
+        // строчка или кадр закончились - отпускаем большой буфер, чтобы не держать память
+        if (len == 0 && buf.length > 1024) buf = EMPTY;
+    }
+
+    private void decodeText(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            byte b = src.get();
+            if (b == 0 && len == 0) {
+                // начало HELLO - дальше бинарный протокол
+                state = HELLO;
+                helloRead = 1;
+                return;
+            }
+            if (b == '\n') {
+                // отрезаем '\r', если клиент прислал "\r\n"
+                int end = (len > 0 && buf[len - 1] == '\r') ? len - 1 : len;
+                if (end == 1 && (buf[0] == Frame.TEXT_PING || buf[0] == Frame.TEXT_PONG)) {
+                    // heartbeat - строчку не создаем
+                    len = 0;
+                    if (buf[0] == Frame.TEXT_PING) connection.deliverPing();
+                    else connection.deliverPong();
+                    continue;
+                }
+                len = 0;
+                // сверх лимита скорости (политика drop/disconnect) - строчку даже не создаем
+                if (!connection.admit(end)) continue;
+                String line = new String(buf, 0, end, StandardCharsets.UTF_8);
+                connection.deliverLine(line);
+                continue;
+            }
+            ensureCapacity(len + 1, MAX_LINE_LENGTH);
+            buf[len++] = b;
+        }
+    }
+
+    private void decodeHello(ByteBuffer src) throws IOException {
+        while (helloRead < Frame.HELLO.length && src.hasRemaining()) {
+            if (src.get() != Frame.HELLO[helloRead++]) throw new IOException("Unknown protocol hello");
+        }
+        if (helloRead == Frame.HELLO.length) {
+            state = BINARY;
+            connection.deliverHello();
+        }
+    }
+
+    private void decodeFrames(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (len == 0 && src.remaining() >= 4) {
+                // быстрый путь: кадр целиком лежит в буфере чтения - отдаем его срез без копирования
+                int pos = src.position();
+                int length = checkLength(src.getInt(pos));
+                if (src.remaining() >= 4 + length) {
+                    src.position(pos + 4 + length);
+                    deliverFrame(src, pos + 4, length);
+                    continue;
+                }
+            }
+            // кадр порван между чтениями - копим его в buf
+            int need = len < 4 ? 4 : 4 + checkLength(ByteBuffer.wrap(buf, 0, 4).getInt());
+            ensureCapacity(need, 4 + Frame.MAX_LENGTH);
+            int n = Math.min(need - len, src.remaining());
+            src.get(buf, len, n);
+            len += n;
+            if (len == need && need > 4) {
+                len = 0;
+                deliverFrame(ByteBuffer.wrap(buf, 0, need), 4, need - 4);
+            }
+        }
+    }
+
+    // frame[offset..offset+length) - тип, отправитель, номер и данные
+    private void deliverFrame(ByteBuffer frame, int offset, int length) {
+        byte type = frame.get(offset);
+        if (type == Frame.PING) {
+            connection.deliverPing();
+            return;
+        }
+        // PONG нужен только как признак живого собеседника - время чтения уже учтено
+        if (type == Frame.PONG) {
+            connection.deliverPong();
+            return;
+        }
+        if (!connection.admit(length - Frame.HEADER_SIZE)) return;
+        long senderId = frame.getLong(offset + 1);
+        long seq = frame.getLong(offset + 9);
+        connection.deliverFrame(type, senderId, seq, frame.slice(offset + Frame.HEADER_SIZE, length - Frame.HEADER_SIZE));
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < Frame.HEADER_SIZE || length > Frame.MAX_LENGTH) throw new IOException("Bad frame length: " + length);
+        return length;
+    }
+
+    private void ensureCapacity(int capacity, int max) throws IOException {
+        if (capacity <= buf.length) return;
+        if (capacity > max) throw new IOException("Message too long: > " + max + " bytes");
+        buf = Arrays.copyOf(buf, Math.min(max, Math.max(capacity, Math.max(64, buf.length * 2))));
+    }
+}
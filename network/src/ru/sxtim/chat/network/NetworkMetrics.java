@@ -0,0 +1,79 @@
+package ru.sxtim.chat.network;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** NetworkMetrics - счетчики всех TCPConnection процесса;
+ *  Обновляются прямо на горячем пути (чтение, запись), поэтому это LongAdder:
+ *  у каждого потока своя ячейка, и потоки соединений не дерутся за одну переменную.
+ *  Только накопительные значения; скорость "в секунду" считает тот, кто их читает.
+ */
+public final class NetworkMetrics {
+    //========Fields===========
+    static final LongAdder MESSAGES_IN = new LongAdder();
+    static final LongAdder MESSAGES_OUT = new LongAdder();
+    static final LongAdder BYTES_IN = new LongAdder();
+    static final LongAdder BYTES_OUT = new LongAdder();
+    static final LongAdder CONNECTIONS_OPENED = new LongAdder();
+    static final LongAdder CONNECTIONS_CLOSED = new LongAdder();
+    static final LongAdder TIMEOUTS = new LongAdder();
+    // входящих сообщений сверх лимита скорости (выброшено или привело к отключению)
+    static final LongAdder RATE_LIMITED = new LongAdder();
+    // сколько раз чтение соединения приостанавливалось по лимиту (политика throttle)
+    static final LongAdder THROTTLED = new LongAdder();
+    // выброшено из переполненных очередей отправки
+    static final LongAdder DROPPED = new LongAdder();
+    // сколько сообщение ждало в очереди отправки соединения, пока писатель не взял его в запись
+    static final Histogram SEND_LATENCY = new Histogram();
+
+    private NetworkMetrics() {
+    }
+
+    // =======Functions=======
+
+    /** Принято строчек и кадров (без heartbeat) */
+    public static long getMessagesIn() {
+        return MESSAGES_IN.sum();
+    }
+
+    /** Отправлено сообщений (пакет истории считается одним, heartbeat и sendBytes не считаются) */
+    public static long getMessagesOut() {
+        return MESSAGES_OUT.sum();
+    }
+
+    public static long getBytesIn() {
+        return BYTES_IN.sum();
+    }
+
+    public static long getBytesOut() {
+        return BYTES_OUT.sum();
+    }
+
+    public static long getConnectionsOpened() {
+        return CONNECTIONS_OPENED.sum();
+    }
+
+    public static long getConnectionsClosed() {
+        return CONNECTIONS_CLOSED.sum();
+    }
+
+    /** Соединений, закрытых по таймауту простоя */
+    public static long getTimeouts() {
+        return TIMEOUTS.sum();
+    }
+
+    public static long getRateLimited() {
+        return RATE_LIMITED.sum();
+    }
+
+    public static long getThrottled() {
+        return THROTTLED.sum();
+    }
+
+    public static long getDropped() {
+        return DROPPED.sum();
+    }
+
+    public static Histogram.Snapshot getSendLatency() {
+        return SEND_LATENCY.snapshot();
+    }
+}
@@ -0,0 +1,125 @@
+package ru.sxtim.chat.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** NioEventLoop - один поток с одним Selector, который обслуживает сразу много соединений;
+ *  Вместо потока на каждого клиента (как в блокирующем TCPConnection) поток спит в select()
+ *  и просыпается только тогда, когда у какого-то из сокетов есть данные или освободилось место для записи.
+ *  Все события соединения (TCPConnectionListener) вызываются из этого потока.
+ */
+final class NioEventLoop implements Runnable {
+    //========Fields===========
+    // общий буфер чтения на весь поток - у соединений своего буфера нет
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final TCPConnectionListener eventListener;
+    private final Selector selector;
+    private final Thread thread;
+    // задачи из других потоков (регистрация, отправка, закрытие) выполняются внутри цикла
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // чтобы не дергать selector.wakeup() на каждую задачу
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    //=============Constructors============
+    NioEventLoop(TCPConnectionListener eventListener, String name) throws IOException {
+        this.eventListener = eventListener;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+    }
+
+    // =======Functions=======
+
+    void start() {
+        thread.start();
+    }
+
+    // true, если нас вызвали из потока этого цикла
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    // выполнить задачу в потоке цикла; из самого цикла - в конце текущей итерации
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop() && wakeupPending.compareAndSet(false, true)) selector.wakeup();
+    }
+
+    // передаем принятый сокет этому циклу
+    void register(SocketChannel channel) {
+        execute(() -> {
+            TCPConnection connection;
+            try {
+                connection = new TCPConnection(eventListener, channel, this, selector);
+            } catch (IOException e) {
+                eventListener.onException(null, e);
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                return;
+            }
+            eventListener.onConnectionReady(connection);
+        });
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                eventListener.onException(null, e);
+                break;
+            }
+            wakeupPending.set(false);
+            runTasks();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                TCPConnection connection = (TCPConnection) key.attachment();
+                if (key.isValid() && key.isReadable()) connection.onReadable(readBuffer);
+                if (key.isValid() && key.isWritable()) connection.onWritable();
+            }
+            // задачи, которые события поставили из этого же потока (wakeup() для них не вызывался):
+            // выполняем сейчас, а не после следующего, может быть нескорого, события
+            runTasks();
+        }
+        // цикл остановлен - закрываем все его соединения
+        runTasks();
+        for (SelectionKey key : selector.keys()) ((TCPConnection) key.attachment()).closeNow();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            eventListener.onException(null, e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // ошибка в одной задаче не должна ронять весь цикл
+                eventListener.onException(null, e);
+            }
+        }
+    }
+}
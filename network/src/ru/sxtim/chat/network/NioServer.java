@@ -0,0 +1,68 @@
+package ru.sxtim.chat.network;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/** NioServer - неблокирующий сервер на Selector/SocketChannel;
+ *  В отличие от цикла ServerSocket.accept() + new TCPConnection(...) не создает поток на каждого клиента:
+ *  принятые сокеты раздаются по кругу небольшому пулу потоков NioEventLoop.
+ *  События приходят в тот же TCPConnectionListener, поэтому серверу неважно, какой движок используется.
+ */
+public class NioServer implements Closeable {
+    //========Fields===========
+    // очередь на accept - при тысячах одновременных подключений стандартных 50 не хватает
+    private static final int ACCEPT_BACKLOG = 4096;
+
+    private final ServerSocketChannel serverChannel;
+    private final NioEventLoop[] loops;
+    // номер цикла, которому отдадим следующее соединение
+    private int next;
+
+    //=============Constructors============
+
+    // loopCount - сколько потоков обслуживают соединения (обычно по числу ядер)
+    public NioServer(TCPConnectionListener eventListener, int port, int loopCount) throws IOException {
+        if (loopCount < 1) throw new IllegalArgumentException("loopCount must be >= 1: " + loopCount);
+        loops = new NioEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) loops[i] = new NioEventLoop(eventListener, "nio-loop-" + i);
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+    }
+
+    // =======Functions=======
+
+    /** Порт, который слушает сервер (нужен, если создавали с портом 0) */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /** Запускает циклы и принимает соединения в текущем потоке, пока сервер не закроют */
+    public void run() {
+        for (NioEventLoop loop : loops) loop.start();
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                // если что-то случается при подключении клиента - просто логируем
+                System.out.println("TCPConnection exception: " + e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (NioEventLoop loop : loops) loop.shutdown();
+    }
+}
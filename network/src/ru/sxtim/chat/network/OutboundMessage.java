@@ -0,0 +1,180 @@
+package ru.sxtim.chat.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** OutboundMessage - сообщение в очереди отправки, еще не привязанное к протоколу;
+ *  Во что его закодировать - в строчку или в кадр Frame - решает писатель соединения в момент записи,
+ *  потому что протокол соединения может смениться (HELLO), пока сообщение ждет в очереди.
+ *  Каждая кодировка строится лениво один раз и дальше общая для всех получателей,
+ *  поэтому одно сообщение можно разослать тысячам соединений: TCPConnection.send(message).
+ */
+public final class OutboundMessage {
+    //========Fields===========
+    private final byte type;
+    private final long senderId;
+    // номер сообщения в комнате, 0 - без номера
+    private final long seq;
+    // данные в UTF-8 (у TEXT - сама строчка без '\n'); null у raw и batch сообщения
+    private final byte[] payload;
+    // части сообщения-пакета (batch), иначе null
+    private final OutboundMessage[] parts;
+    private volatile ByteBuffer line;
+    private volatile ByteBuffer frame;
+    // когда сообщение создано (System.nanoTime()) - для задержки отправки; 0 у служебных и raw
+    private final long createdNanos;
+
+    //=============Constructors============
+    private OutboundMessage(byte type, long senderId, long seq, byte[] payload, OutboundMessage[] parts, ByteBuffer raw) {
+        this(type, senderId, seq, payload, parts, raw, raw, raw == null ? System.nanoTime() : 0);
+    }
+
+    private OutboundMessage(byte type, long senderId, long seq, byte[] payload, OutboundMessage[] parts,
+                            ByteBuffer line, ByteBuffer frame, long createdNanos) {
+        this.type = type;
+        this.senderId = senderId;
+        this.seq = seq;
+        this.payload = payload;
+        this.parts = parts;
+        this.line = line;
+        this.frame = frame;
+        this.createdNanos = createdNanos;
+    }
+
+    /** Текстовое сообщение */
+    public static OutboundMessage text(long senderId, String value) {
+        byte[] payload = new byte[Utf8.encodedLength(value)];
+        Utf8.encode(value, payload, 0);
+        return new OutboundMessage(Frame.TEXT, senderId, 0, payload, null, null);
+    }
+
+    /** Сообщение из данных принятого кадра - без перевода в String (payload копируется) */
+    public static OutboundMessage frame(byte type, long senderId, ByteBuffer payload) {
+        byte[] copy = new byte[payload.remaining()];
+        payload.duplicate().get(copy);
+        return new OutboundMessage(type, senderId, 0, copy, null, null);
+    }
+
+    /**
+     * Несколько сообщений одним куском: писатель кодирует их подряд в один буфер и пишет одной записью,
+     * а в очереди соединения пакет занимает одно место (переполнение не выкинет его наполовину).
+     * Для повтора истории комнаты новому клиенту.
+     */
+    public static OutboundMessage batch(OutboundMessage[] messages, int from, int count) {
+        OutboundMessage[] parts = new OutboundMessage[count];
+        System.arraycopy(messages, from, parts, 0, count);
+        return new OutboundMessage((byte) 0, 0, 0, null, parts, null);
+    }
+
+    // уже закодированные байты - уходят как есть при любом протоколе
+    static OutboundMessage raw(ByteBuffer bytes) {
+        return new OutboundMessage((byte) 0, 0, 0, null, null, bytes.asReadOnlyBuffer());
+    }
+
+    // служебный кадр без данных (PING, PONG); в текстовом протоколе - строчка из одного байта textMarker
+    static OutboundMessage control(byte type, byte textMarker) {
+        ByteBuffer line = ByteBuffer.allocateDirect(2).put(textMarker).put((byte) '\n').flip();
+        return new OutboundMessage(type, 0, 0, null, null,
+                line.asReadOnlyBuffer(), Frame.encode(type, 0, 0, new byte[0]), 0);
+    }
+
+    /** То же сообщение с номером в комнате; данные общие, не копируются */
+    public OutboundMessage withSeq(long seq) {
+        if (payload == null) throw new IllegalStateException("Only text/frame messages have a sequence number");
+        // время создания то же - задержка считается от исходного сообщения
+        return new OutboundMessage(type, senderId, seq, payload, parts, null, null, createdNanos);
+    }
+
+    // =======Functions=======
+
+    public byte getType() {
+        return type;
+    }
+
+    public long getSenderId() {
+        return senderId;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    /** Данные сообщения только для чтения (у TEXT - строчка в UTF-8); null у raw и batch сообщений */
+    public ByteBuffer getPayload() {
+        return payload == null ? null : ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    /** Части сообщения-пакета (batch) по порядку; у обычного сообщения - пустой список */
+    public List<OutboundMessage> getParts() {
+        return parts == null ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList(parts));
+    }
+
+    long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    // байты для записи в сокет (своя позиция у каждого вызова); null - в этом протоколе сообщение не передается
+    ByteBuffer encode(boolean binary) {
+        if (parts != null) return encodeBatch(binary);
+        ByteBuffer encoded = binary ? frame() : line();
+        return encoded == null ? null : encoded.duplicate();
+    }
+
+    // пакет нужен одному получателю - собираем его без кеша
+    private ByteBuffer encodeBatch(boolean binary) {
+        ByteBuffer[] encoded = new ByteBuffer[parts.length];
+        int size = 0;
+        for (int i = 0; i < parts.length; i++) {
+            encoded[i] = parts[i].encode(binary);
+            if (encoded[i] != null) size += encoded[i].remaining();
+        }
+        ByteBuffer result = ByteBuffer.allocate(size);
+        for (ByteBuffer buf : encoded) if (buf != null) result.put(buf);
+        result.flip();
+        return result;
+    }
+
+    // строчка + '\n'; '\n' внутри данных заменяем пробелом, иначе текстовый клиент увидит две строчки.
+    // Первый байт 0 (начало HELLO) или ENQ/ACK (heartbeat) тоже заменяем пробелом: данные из кадра
+    // бинарного клиента могут начинаться с чего угодно, а текстовый получатель принял бы их за протокол
+    private ByteBuffer line() {
+        ByteBuffer result = line;
+        if (result == null && type == Frame.TEXT) {
+            synchronized (this) {
+                result = line;
+                if (result == null) {
+                    result = ByteBuffer.allocateDirect(payload.length + 1);
+                    for (byte b : payload) result.put(b == '\n' ? (byte) ' ' : b);
+                    if (payload.length > 0 && isLineControl(payload[0])) result.put(0, (byte) ' ');
+                    result.put((byte) '\n').flip();
+                    line = result = result.asReadOnlyBuffer();
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean isLineControl(byte b) {
+        return b == 0 || b == Frame.TEXT_PING || b == Frame.TEXT_PONG;
+    }
+
+    private ByteBuffer frame() {
+        ByteBuffer result = frame;
+        if (result == null) {
+            synchronized (this) {
+                result = frame;
+                if (result == null) frame = result = Frame.encode(type, senderId, seq, payload);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        if (parts != null) return "batch of " + parts.length + " messages";
+        return payload == null ? "raw " + line.remaining() + " bytes" : new String(payload, StandardCharsets.UTF_8);
+    }
+}
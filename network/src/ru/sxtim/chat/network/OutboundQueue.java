@@ -0,0 +1,90 @@
+package ru.sxtim.chat.network;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** OutboundQueue - ограниченная очередь сообщений одного соединения;
+ *  В нее кладут любые потоки (рассылка сервера), а забирает один писатель соединения:
+ *  свой поток в блокирующем режиме или NioEventLoop в неблокирующем.
+ *  Поэтому отправка никогда не ждет сокет, а медленный клиент копит сообщения только у себя.
+ */
+final class OutboundQueue {
+    //========Fields===========
+    // LinkedBlockingQueue не выделяет массив на всю емкость заранее - важно при десятках тысяч соединений
+    private final LinkedBlockingQueue<OutboundMessage> queue;
+    private final OverflowPolicy policy;
+    // BLOCK: сколько ждать места, потом - как DISCONNECT
+    private final long blockNanos;
+    // сколько сообщений выброшено из-за переполнения
+    private final AtomicLong dropped = new AtomicLong();
+
+    //=============Constructors============
+    OutboundQueue(int capacity, OverflowPolicy policy, long blockNanos) {
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.blockNanos = blockNanos;
+    }
+
+    // =======Functions=======
+
+    // false - очередь полна и политика требует отключить клиента
+    boolean offer(OutboundMessage message) {
+        if (queue.offer(message)) return true;
+        switch (policy) {
+            case DROP_OLDEST:
+                // писатель мог успеть освободить место - тогда выбрасывать ничего не надо
+                do {
+                    if (queue.poll() != null) countDropped();
+                } while (!queue.offer(message));
+                return true;
+            case DROP_NEWEST:
+                countDropped();
+                return true;
+            case BLOCK:
+                try {
+                    return queue.offer(message, blockNanos, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            default:
+                return false;
+        }
+    }
+
+    private void countDropped() {
+        dropped.incrementAndGet();
+        NetworkMetrics.DROPPED.increment();
+    }
+
+    OutboundMessage poll() {
+        return queue.poll();
+    }
+
+    // ждем сообщение не дольше timeoutNanos; null - так и не пришло
+    OutboundMessage poll(long timeoutNanos) throws InterruptedException {
+        return queue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // ждем следующее сообщение (блокирующий писатель)
+    OutboundMessage take() throws InterruptedException {
+        return queue.take();
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    int capacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    long dropped() {
+        return dropped.get();
+    }
+
+    void clear() {
+        queue.clear();
+    }
+}
@@ -0,0 +1,27 @@
+package ru.sxtim.chat.network;
+
+/** OverflowPolicy - что делать, когда очередь отправки соединения заполнена;
+ *  Очередь заполняется у "медленного" клиента, который не успевает читать (полное TCP окно).
+ *  Выбирается при запуске: -Dchat.outbound.policy=drop_oldest|drop_newest|disconnect
+ */
+public enum OverflowPolicy {
+    // выкинуть самое старое неотправленное сообщение и поставить новое
+    DROP_OLDEST,
+    // выкинуть новое сообщение, очередь не трогаем
+    DROP_NEWEST,
+    // отключить клиента - он все равно не успевает
+    DISCONNECT,
+    // Ждать места - тот, кто отправляет, тормозит вместе с получателем. Не дольше таймаута записи
+    // (-Dchat.idle.writeTimeoutMs), потом отключить. Только для соединений со своим потоком записи,
+    // где терять сообщения нельзя (связи между узлами кластера); свойством chat.outbound.policy не выбирается
+    BLOCK;
+
+    // значение свойства в enum; неизвестное значение - ошибка запуска, а не тихий выбор по умолчанию
+    static OverflowPolicy fromProperty(String name, OverflowPolicy defaultPolicy) {
+        String value = System.getProperty(name);
+        if (value == null) return defaultPolicy;
+        OverflowPolicy policy = valueOf(value.trim().toUpperCase());
+        if (policy == BLOCK) throw new IllegalArgumentException(name + "=block is only for cluster links");
+        return policy;
+    }
+}
@@ -0,0 +1,19 @@
+package ru.sxtim.chat.network;
+
+/** RateLimitPolicy - что делать с входящими сообщениями сверх лимита RateLimiter;
+ *  Выбирается при запуске: -Dchat.limit.policy=throttle|drop|disconnect
+ */
+public enum RateLimitPolicy {
+    // перестать читать сокет, пока скорость не вернется в лимит - клиента тормозит TCP окно
+    THROTTLE,
+    // выкинуть сообщение, не отдавая его слушателю
+    DROP,
+    // отключить клиента
+    DISCONNECT;
+
+    // значение свойства в enum; неизвестное значение - ошибка запуска, а не тихий выбор по умолчанию
+    static RateLimitPolicy fromProperty(String name, RateLimitPolicy defaultPolicy) {
+        String value = System.getProperty(name);
+        return value == null ? defaultPolicy : valueOf(value.trim().toUpperCase());
+    }
+}
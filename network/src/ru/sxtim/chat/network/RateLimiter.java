@@ -0,0 +1,139 @@
+package ru.sxtim.chat.network;
+
+/** RateLimiter - лимиты входящих сообщений одного соединения: своих и общих на весь процесс;
+ *  Свои ведра трогает только поток чтения соединения. Общие ведра - одни на все потоки чтения,
+ *  поэтому в них платим не за каждое сообщение, а за кусок чтения целиком (endOfChunk()):
+ *  THROTTLE считает сообщения и байты куска и платит одним reserve(); DROP и DISCONNECT берут токены
+ *  в аренду пачкой (около 1 мс общей скорости) и возвращают остаток в конце куска.
+ *  Так на общий AtomicLong приходится одно-два обращения на чтение из сокета, а запаса "на потом"
+ *  у соединения нет - молчащие клиенты ничего не отнимают у общего лимита.
+ *  Сообщение, которое отклонил один лимит, не тратит остальные: уже взятое возвращается.
+ *  Настройки (0 - без лимита):
+ *  -Dchat.limit.messagesPerSecond, -Dchat.limit.bytesPerSecond - на одно соединение;
+ *  -Dchat.limit.global.messagesPerSecond, -Dchat.limit.global.bytesPerSecond - на весь процесс;
+ *  -Dchat.limit.burstSeconds (по умолчанию 1) - сколько секунд лимита можно выбрать одним всплеском;
+ *  -Dchat.limit.policy=throttle|drop|disconnect (по умолчанию throttle).
+ *  Байты - это размер строчки или данных кадра. Heartbeat не считается.
+ *  Не потокобезопасен - вызывает только поток чтения соединения.
+ */
+final class RateLimiter {
+    //========Fields===========
+    private static final long MESSAGES_PER_SECOND = Long.getLong("chat.limit.messagesPerSecond", 0);
+    private static final long BYTES_PER_SECOND = Long.getLong("chat.limit.bytesPerSecond", 0);
+    private static final long GLOBAL_MESSAGES_PER_SECOND = Long.getLong("chat.limit.global.messagesPerSecond", 0);
+    private static final long GLOBAL_BYTES_PER_SECOND = Long.getLong("chat.limit.global.bytesPerSecond", 0);
+    private static final double BURST_SECONDS = Double.parseDouble(System.getProperty("chat.limit.burstSeconds", "1"));
+    static final RateLimitPolicy POLICY = RateLimitPolicy.fromProperty("chat.limit.policy", RateLimitPolicy.THROTTLE);
+
+    private static final TokenBucket GLOBAL_MESSAGES = bucket(GLOBAL_MESSAGES_PER_SECOND);
+    private static final TokenBucket GLOBAL_BYTES = bucket(GLOBAL_BYTES_PER_SECOND);
+    // аренда из общего ведра - около 1 мс общей скорости, но не больше 256 сообщений / 64 KB
+    private static final long MESSAGE_LEASE = lease(GLOBAL_MESSAGES_PER_SECOND, 256);
+    private static final long BYTE_LEASE = lease(GLOBAL_BYTES_PER_SECOND, 64 * 1024);
+    private static final boolean ENABLED = MESSAGES_PER_SECOND > 0 || BYTES_PER_SECOND > 0
+            || GLOBAL_MESSAGES != null || GLOBAL_BYTES != null;
+
+    // свои ведра соединения, null - лимита нет
+    private final TokenBucket messages = bucket(MESSAGES_PER_SECOND);
+    private final TokenBucket bytes = bucket(BYTES_PER_SECOND);
+    // DROP, DISCONNECT: остаток аренды из общих ведер на текущий кусок
+    private long leasedMessages;
+    private long leasedBytes;
+    // THROTTLE: сколько набрал текущий кусок - в общие ведра платим в endOfChunk()
+    private long chunkMessages;
+    private long chunkBytes;
+
+    //=============Constructors============
+    private RateLimiter() {
+    }
+
+    // null - ни один лимит не задан, соединению ничего не нужно проверять
+    static RateLimiter create() {
+        return ENABLED ? new RateLimiter() : null;
+    }
+
+    private static TokenBucket bucket(long rate) {
+        return rate > 0 ? new TokenBucket(rate, BURST_SECONDS) : null;
+    }
+
+    private static long lease(long rate, long max) {
+        return Math.max(1, Math.min(max, rate / 1000));
+    }
+
+    // =======Functions=======
+
+    /**
+     * Пропустить входящее сообщение размером size байт.
+     * THROTTLE: сообщение пропускается всегда, результат - сколько наносекунд не читать сокет (0 - не нужно).
+     * DROP, DISCONNECT: 0 - в лимите, -1 - лимит превышен.
+     */
+    long admit(int size) {
+        if (POLICY == RateLimitPolicy.THROTTLE) {
+            long wait = 0;
+            if (messages != null) wait = messages.reserve(1);
+            if (bytes != null) wait = Math.max(wait, bytes.reserve(size));
+            chunkMessages++;
+            chunkBytes += size;
+            return wait;
+        }
+        if (messages != null && !messages.tryAcquire(1)) return -1;
+        if (bytes != null && !bytes.tryAcquire(size)) {
+            if (messages != null) messages.refund(1);
+            return -1;
+        }
+        if (!leaseGlobal(size)) {
+            if (messages != null) messages.refund(1);
+            if (bytes != null) bytes.refund(size);
+            return -1;
+        }
+        if (GLOBAL_MESSAGES != null) leasedMessages--;
+        if (GLOBAL_BYTES != null) leasedBytes -= size;
+        return 0;
+    }
+
+    // добрать аренду из общих ведер так, чтобы хватило на сообщение; false - общий лимит превышен, ничего не взято
+    private boolean leaseGlobal(int size) {
+        long gotMessages = 0;
+        if (GLOBAL_MESSAGES != null && leasedMessages < 1) {
+            // пачкой, а у самого лимита - хотя бы одно сообщение
+            gotMessages = take(GLOBAL_MESSAGES, MESSAGE_LEASE, 1);
+            if (gotMessages == 0) return false;
+        }
+        if (GLOBAL_BYTES != null && leasedBytes < size) {
+            long need = size - leasedBytes;
+            long gotBytes = take(GLOBAL_BYTES, Math.max(BYTE_LEASE, need), need);
+            if (gotBytes == 0) {
+                if (gotMessages > 0) GLOBAL_MESSAGES.refund(gotMessages);
+                return false;
+            }
+            leasedBytes += gotBytes;
+        }
+        leasedMessages += gotMessages;
+        return true;
+    }
+
+    // сколько удалось взять: want, иначе хотя бы need, иначе 0
+    private static long take(TokenBucket bucket, long want, long need) {
+        if (bucket.tryAcquire(want)) return want;
+        return want > need && bucket.tryAcquire(need) ? need : 0;
+    }
+
+    /**
+     * Кусок чтения разобран. THROTTLE платит за него в общие ведра и возвращает, сколько наносекунд
+     * не читать сокет; DROP и DISCONNECT возвращают в общие ведра остаток аренды (результат 0).
+     */
+    long endOfChunk() {
+        long wait = 0;
+        if (chunkMessages > 0) {
+            if (GLOBAL_MESSAGES != null) wait = GLOBAL_MESSAGES.reserve(chunkMessages);
+            if (GLOBAL_BYTES != null) wait = Math.max(wait, GLOBAL_BYTES.reserve(chunkBytes));
+            chunkMessages = 0;
+            chunkBytes = 0;
+        }
+        if (leasedMessages > 0) GLOBAL_MESSAGES.refund(leasedMessages);
+        if (leasedBytes > 0) GLOBAL_BYTES.refund(leasedBytes);
+        leasedMessages = 0;
+        leasedBytes = 0;
+        return wait;
+    }
+}
@@ -2,27 +2,120 @@ package ru.sxtim.chat.network;
 
 import java.io.*;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /** TCPConnection - класс который реализует одно TCP соединение,
  *  для того чтобы не работать на прямую с ServerSocket и Socket;
  */
 public class TCPConnection {
     //========Fields===========
+    // на каких потоках крутится прием: обычные или виртуальные (-Dchat.threads=platform|virtual)
+    private static final ThreadMode THREAD_MODE = ThreadMode.current();
+    // сколько неотправленных сообщений может накопить соединение (-Dchat.outbound.capacity)
+    private static final int OUTBOUND_CAPACITY = Integer.getInteger("chat.outbound.capacity", 1024);
+    // что делать с переполненной очередью (-Dchat.outbound.policy=drop_oldest|drop_newest|disconnect)
+    private static final OverflowPolicy OVERFLOW_POLICY = OverflowPolicy.fromProperty("chat.outbound.policy", OverflowPolicy.DROP_OLDEST);
+    // Пакетная запись: все сообщения, которые накопились в очереди, пишем одним куском и сбрасываем один раз,
+    // вместо системного вызова (и часто отдельного TCP сегмента) на каждое сообщение.
+    // максимум сообщений в одном пакете (-Dchat.outbound.maxBatch)
+    static final int MAX_BATCH = Math.max(1, Integer.getInteger("chat.outbound.maxBatch", 64));
+    // сколько микросекунд писатель ждет новые сообщения перед сбросом (-Dchat.outbound.lingerMicros, 0 - не ждать)
+    private static final long LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.outbound.lingerMicros", 0));
+    // размер буфера вывода блокирующего режима - в него собирается пакет
+    private static final int OUT_BUFFER_SIZE = 16 * 1024;
+    // размер буфера чтения блокирующего режима
+    private static final int IN_BUFFER_SIZE = 8 * 1024;
+    // Heartbeat и таймауты простоя - все соединения проверяет один общий TimerWheel, 0 - отключено.
+    // если мы ничего не отправляли столько мс, шлем PING (-Dchat.heartbeat.intervalMs)
+    private static final long PING_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.heartbeat.intervalMs", 20_000));
+    // если от собеседника столько мс не пришло ни байта (даже PONG) - соединение мертвое (-Dchat.idle.readTimeoutMs)
+    private static final long READ_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.idle.readTimeoutMs", 60_000));
+    // если запись в сокет стоит столько мс - собеседник не читает (-Dchat.idle.writeTimeoutMs)
+    private static final long WRITE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.idle.writeTimeoutMs", 30_000));
+    private static final boolean IDLE_CHECKS = PING_INTERVAL_NANOS > 0 || READ_TIMEOUT_NANOS > 0 || WRITE_TIMEOUT_NANOS > 0;
+    private static final OutboundMessage PING = OutboundMessage.control(Frame.PING, Frame.TEXT_PING);
+    private static final OutboundMessage PONG = OutboundMessage.control(Frame.PONG, Frame.TEXT_PONG);
+    // пустое сообщение - только разбудить txThread
+    private static final OutboundMessage WAKE_UP = OutboundMessage.raw(ByteBuffer.allocate(0));
+    // счетчик номеров соединений
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    // номер соединения внутри процесса - senderId в кадрах Frame
+    private final long id = NEXT_ID.incrementAndGet();
     // сокет
     private final Socket socket;
     // Поток, который будет слушать входящее сообщение.
     // Т. е. один поток на каждом клиенте и он будет слушать входящие сообщения
     // постоянно читать поток ввода, если строчка прилетела, то будет генерировать события
     private final Thread rxThread;
+    // Поток, который забирает сообщения из очереди отправки и пишет их в сокет
+    private final Thread txThread;
 
     // Слушатель событий
     private final TCPConnectionListener eventListener;
-    //потоки для работы со строками
     // поток ввода
-    private final BufferedReader in;
-    // поток вывода
-    private final BufferedWriter out;
+    private final InputStream in;
+    // поток вывода (пишет только txThread, поэтому синхронизировать его не нужно)
+    private final OutputStream out;
+    // Буфер, в который txThread собирает пакет. Свой, а не BufferedOutputStream:
+    // сообщения приходят в ByteBuffer (в том числе direct и read-only), копируем их сюда один раз
+    private final byte[] outBuf;
+    private int outLen;
+    // очередь отправки: sendString кладет сюда строчку и сразу возвращается
+    private final OutboundQueue outbound;
+    // режет входящие байты на строчки или кадры
+    private final InboundDecoder decoder = new InboundDecoder(this);
+    // Протокол (Frame): нужно отправить HELLO - клиент начинает бинарный протокол или сервер отвечает на HELLO.
+    // Выставляется потоком чтения, а пишет HELLO писатель - тогда все, что он запишет после, уже кадры
+    private volatile boolean helloPending;
+    // свой HELLO уже отправлен (или поставлен) - на ответный HELLO отвечать не нужно
+    private volatile boolean helloSent;
+    // в каком формате писатель кодирует сообщения; меняет только писатель
+    private boolean binaryOut;
+
+    // лимиты скорости входящих сообщений (-Dchat.limit.*), null - без лимита
+    private volatile RateLimiter limiter = RateLimiter.create();
+    // THROTTLE: сколько не читать сокет после разбора текущего куска; только поток чтения
+    private long throttleNanos;
+
+    // соединение закрыто - закрываем и считаем один раз
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    // Поля неблокирующего режима (NioServer). В блокирующем режиме равны null.
+    // канал, на котором работает соединение
+    private final SocketChannel channel;
+    // поток-цикл, который обслуживает этот канал
+    private final NioEventLoop loop;
+    private final SelectionKey key;
+    // пакет, который уже начали писать, но сокет принял его не целиком: inFlight[inFlightStart..inFlightEnd)
+    // создается при первой записи, у простаивающего соединения его нет
+    private ByteBuffer[] inFlight;
+    private int inFlightStart;
+    private int inFlightEnd;
+    // уже поставлена ли задача отправки в цикл
+    private final AtomicBoolean flushScheduled;
+
+    // Таймауты: время последнего чтения и последней записи (System.nanoTime()).
+    // Пишет только поток чтения / писатель, читает поток таймера
+    private volatile long lastReadNanos = System.nanoTime();
+    private volatile long lastWriteNanos = lastReadNanos;
+    // когда началась запись, которая еще не закончилась; 0 - сейчас ничего не пишем
+    private volatile long writeStartNanos;
+    // следующая проверка простоя в TimerWheel
+    private volatile TimerWheel.Timeout idleCheck;
+    // Собеседник показал, что понимает heartbeat: прислал HELLO, PING или PONG. Только после этого
+    // ему шлем PING и ждем от него байтов - старый текстовый клиент PING не знает и может просто молчать
+    private volatile boolean peerHeartbeats;
+    // соединение открыли мы сами (к серверу чата) - PING шлем сразу, сервер ответит PONG
+    private final boolean dialed;
 
     //=============Constructors============
 
@@ -39,35 +132,79 @@ public class TCPConnection {
     // и создает с этим сокетом соединение
     // принимает на вход экземпляр слушателя событий
     public TCPConnection( TCPConnectionListener eventListener, Socket socket ) throws IOException {
+        this(eventListener, socket, false);
+    }
+
+    // то же самое, но binary = true сразу начинает бинарный протокол Frame (шлет серверу HELLO)
+    public TCPConnection( TCPConnectionListener eventListener, Socket socket, boolean binary ) throws IOException {
+        this(eventListener, socket, binary, false);
+    }
+
+    /**
+     * То же самое, но со своей очередью отправки вместо -Dchat.outbound.*: например, связи между узлами
+     * кластера - большая очередь и OverflowPolicy.BLOCK, чтобы сообщения не терялись при всплеске.
+     */
+    public TCPConnection( TCPConnectionListener eventListener, Socket socket, boolean binary,
+                          int queueCapacity, OverflowPolicy overflowPolicy ) throws IOException {
+        this(eventListener, socket, binary, false, queueCapacity, overflowPolicy);
+    }
+
+    private TCPConnection( TCPConnectionListener eventListener, Socket socket, boolean binary, boolean dialed ) throws IOException {
+        this(eventListener, socket, binary, dialed, OUTBOUND_CAPACITY, OVERFLOW_POLICY);
+    }
+
+    // dialed = true - сокет открыли мы сами по адресу сервера (ВТОРОЙ КОНСТРУКТОР)
+    private TCPConnection( TCPConnectionListener eventListener, Socket socket, boolean binary, boolean dialed,
+                           int queueCapacity, OverflowPolicy overflowPolicy ) throws IOException {
 /**запоминаем сокет и слушателя событий в поля*/
         this.eventListener = eventListener;
+        this.dialed = dialed;
+        this.outbound = newQueue(queueCapacity, overflowPolicy);
         this.socket = socket;
+        this.channel = null;
+        this.loop = null;
+        this.key = null;
+        this.flushScheduled = null;
 /** далее у этого сокета получаем входящий и исходящий поток  socket.getInputStream();
 *чтобы принимать какие-то байты и писать какие-то байты     socket.getInputStream();
-*/        // На основе простого потока getInputStream создаем более сложный InputStream
-        // и оборачиваем в экземпляр класса BufferedReader, который умеет читать строчки.
-        // Можно напрямую указать кодировку с которой работаем
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+*/        // Читаем сырые байты: строчки (UTF-8) и кадры из них выделяет InboundDecoder
+        // пакеты собирает сам писатель (outBuf), Nagle только задержал бы мелкие ответы
+        socket.setTcpNoDelay(true);
+        in = socket.getInputStream();
+        out = socket.getOutputStream();
+        if (binary) {
+            // HELLO уйдет первым, еще до сообщений из очереди
+            helloSent = true;
+            helloPending = true;
+        }
+        outBuf = new byte[OUT_BUFFER_SIZE];
+        NetworkMetrics.CONNECTIONS_OPENED.increment();
         /**Поток должен что-то выполнять, для того чтобы он что-то выполнял - один из вариантов
          * передать ему экземпляр класса, который реализует интерфейс Runnable;
          * Создаем анонимный класс, который реализует интерфейс Runnable, оверрайдим метод run()
          * исоздаем его экземпляр
         */
         // создаем новый поток, который слушает все входящее
-        rxThread = new Thread(new Runnable() {
+        rxThread = THREAD_MODE.newThread("tcp-rx-" + socket.getPort(), new Runnable() {
             @Override
             public void run() {//когда стартовал поток
                 try {// предаем в соединение себя (экземпляр обрамляющего класса)
                     eventListener.onConnectionReady(TCPConnection.this);
 
-                    // получаем строчки в бесконечном цикле (любое сетевое соединение как правило - бесконечный цикл)
+                    byte[] chunk = new byte[IN_BUFFER_SIZE];
+                    ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+                    // получаем байты в бесконечном цикле (любое сетевое соединение как правило - бесконечный цикл)
                     while(!rxThread.isInterrupted()){// пока поток не прерван
-                        // читаем строку
-                        String msg = in.readLine();
-                        //  и отдаем ее eventListener (передаем туда объект соединения и строчку)
-                        eventListener.onReceiveString(TCPConnection.this, msg);
-                        System.out.println("iSInterrupted");
+                        int n = in.read(chunk);
+                        // -1 - клиент закрыл соединение
+                        if (n < 0) break;
+                        lastReadNanos = System.nanoTime();
+                        NetworkMetrics.BYTES_IN.add(n);
+                        // декодер отдаст готовые строчки и кадры в eventListener
+                        chunkBuffer.clear().limit(n);
+                        decoder.decode(chunkBuffer);
+                        chunkDecoded();
+                        if (throttleNanos > 0) throttleBlocking();
                     }
 
 
@@ -77,51 +214,303 @@ public class TCPConnection {
                 // если случилась какая-то ошибка в любом случае закрываем сокет
                 // передаем дисконнект
                 finally {
+                    // закрываем сокет и останавливаем txThread, чтобы он не висел на пустой очереди
+                    disconnect();
                     eventListener.onDisconnect(TCPConnection.this);
                 }
             }
         });
-        // запускаем поток
+        txThread = THREAD_MODE.newThread("tcp-tx-" + socket.getPort(), this::writeLoop);
+        // запускаем потоки
         rxThread.start();
+        txThread.start();
+        startIdleChecks();
     }
     // ВТОРОЙ КОНСТРУКТОР создает сокет. Рассчитан на то что сокет будет создаваться внутри
     // передаем ipAddr, port
     public TCPConnection(TCPConnectionListener eventListener, String ipAddr, int port ) throws IOException{
         //вызываем ПЕРВЫЙ конструктор
         // передаем сокет на основании ipAddr, и порта
-        this(eventListener, new Socket(ipAddr, port));
+        this(eventListener, new Socket(ipAddr, port), false, true);
+
+    }
 
+    // то же самое, но с выбором протокола: binary = true - кадры Frame, false - строчки
+    public TCPConnection(TCPConnectionListener eventListener, String ipAddr, int port, boolean binary ) throws IOException{
+        this(eventListener, new Socket(ipAddr, port), binary, true);
+    }
+
+    // ТРЕТИЙ КОНСТРУКТОР - неблокирующий режим. Вызывается из NioEventLoop для принятого канала:
+    // своего потока нет, чтение и запись выполняет цикл, на котором зарегистрирован канал
+    TCPConnection(TCPConnectionListener eventListener, SocketChannel channel, NioEventLoop loop, Selector selector) throws IOException {
+        this.eventListener = eventListener;
+        this.dialed = false;
+        // BLOCK здесь нельзя: писатель - этот же цикл, он бы ждал сам себя
+        this.outbound = newQueue(OUTBOUND_CAPACITY, OVERFLOW_POLICY);
+        this.socket = channel.socket();
+        this.channel = channel;
+        this.loop = loop;
+        this.rxThread = null;
+        this.txThread = null;
+        this.in = null;
+        this.out = null;
+        this.outBuf = null;
+        this.flushScheduled = new AtomicBoolean();
+        channel.configureBlocking(false);
+        this.key = channel.register(selector, SelectionKey.OP_READ, this);
+        NetworkMetrics.CONNECTIONS_OPENED.increment();
+        startIdleChecks();
+    }
+
+    // BLOCK ждет места не дольше таймаута записи: дольше писатель все равно не ждет
+    private static OutboundQueue newQueue(int capacity, OverflowPolicy policy){
+        return new OutboundQueue(capacity, policy, WRITE_TIMEOUT_NANOS > 0 ? WRITE_TIMEOUT_NANOS : Long.MAX_VALUE);
     }
 
     // =======Functions=======
 
+    // номер соединения внутри процесса
+    public long getId(){
+        return id;
+    }
+
     /**
-     * Так как класс многопоточный, синхронизируем методы для потокобезопасности,
-     * чтобы к этим методам можно было обращаться из разных потоков
-     * мы их синхронизируем
+     * Так как класс многопоточный, методы должны быть потокобезопасными,
+     * чтобы к ним можно было обращаться из разных потоков.
+     * Отправка не пишет в сокет сама, а только кладет строчку в потокобезопасную очередь,
+     * поэтому блокировок тут нет и медленный клиент не задерживает того, кто отправляет
      */
     // отправить сообщение (спрашивает строчку которую мыы хотим отправить)
-    public synchronized void sendString(String value){
-        try {
+    public void sendString(String value){
+        // Символ конца строки (или заголовок кадра) добавит писатель - в том формате,
+        // который будет у соединения в момент записи
+        send(OutboundMessage.text(id, value));
+    }
 
+    // отправить бинарный кадр; текстовому собеседнику уйдут только кадры TEXT
+    public void sendFrame(byte type, ByteBuffer payload){
+        send(OutboundMessage.frame(type, id, payload));
+    }
 
-            // Пишем в поток вывода.
-            // Добавляем символы конца строки - возврат каретки и перевод строки,
-            // для того чтоб понять, где конец строки
-            out.write(value + "\n");
-            // сбрасывает все буферы и отправляет
-            out.flush();
-        } catch (IOException e) {
+    /**
+     * Отправить готовое сообщение.
+     * Одно и то же сообщение можно отдать сразу многим соединениям: строчка и кадр кодируются
+     * в direct буферы один раз на всех, каждое соединение пишет свой duplicate() без копирования.
+     */
+    public void send(OutboundMessage message){
+        if (!outbound.offer(message)) {
+            // Очередь переполнена и политика DISCONNECT - отключаем отстающего клиента, но не прямо здесь:
+            // send() зовут под блокировкой комнаты, а onDisconnect сам рассылает в комнаты и меняет их состав.
+            // В неблокирующем режиме closeNow() вызвал бы onDisconnect сразу - откладываем его задачей цикла;
+            // в блокирующем onDisconnect и так вызовет поток чтения, когда выйдет
+            if (channel != null) loop.execute(this::overflowDisconnect);
+            else overflowDisconnect();
+            return;
+        }
+        // в неблокирующем режиме пишет цикл - будим его; в блокирующем txThread сам ждет очередь
+        if (channel != null) scheduleFlush();
+    }
+
+    private void overflowDisconnect(){
+        // задач может накопиться несколько - отчитываемся один раз
+        if (closed.get()) return;
+        eventListener.onException(TCPConnection.this,
+                new IOException("Outbound queue overflow (" + outbound.capacity() + " messages), disconnecting"));
+        disconnect();
+    }
+
+    /**
+     * Отправить уже закодированные байты как есть, в любом протоколе.
+     * Один и тот же буфер можно отдать сразу многим соединениям: каждое берет себе duplicate()
+     * со своей позицией, а сами байты общие. После передачи буфер менять нельзя.
+     */
+    public void sendBytes(ByteBuffer bytes){
+        send(OutboundMessage.raw(bytes));
+    }
+
+    /**
+     * Не ограничивать скорость входящих сообщений этого соединения (-Dchat.limit.*),
+     * например для связей между узлами кластера. Вызывать в onConnectionReady.
+     */
+    public void exemptFromRateLimit(){
+        limiter = null;
+    }
+
+    // сколько сообщений ждут отправки - у медленного клиента растет
+    public int getQueueDepth(){
+        return outbound.size();
+    }
+
+    // сколько сообщений выброшено из-за переполнения очереди
+    public long getDroppedCount(){
+        return outbound.dropped();
+    }
+
+    // цикл txThread: ждем сообщение, добираем из очереди все, что успело накопиться, и сбрасываем один раз
+    private void writeLoop(){
+        try {
+            while (!txThread.isInterrupted()) {
+                // HELLO клиента отправляем сразу, не дожидаясь первого сообщения
+                OutboundMessage message = helloPending ? WAKE_UP : outbound.take();
+                final long deadline = System.nanoTime() + LINGER_NANOS;
+                int count = 0;
+                while (message != null) {
+                    if (helloPending) writeHello();
+                    ByteBuffer buf = message.encode(binaryOut);
+                    if (buf != null) {
+                        bufferWrite(buf);
+                        sent(message);
+                    }
+                    if (++count >= MAX_BATCH) break;
+                    message = outbound.poll();
+                    if (message == null && LINGER_NANOS > 0) {
+                        // очередь пуста - немного ждем, вдруг прилетит еще сообщение в этот же пакет
+                        long left = deadline - System.nanoTime();
+                        if (left > 0) message = outbound.poll(left);
+                    }
+                }
+                // сбрасывает все буферы и отправляет
+                flushOut();
+            }
+        } catch (InterruptedException e) {
+            // соединение закрыли - просто выходим
+        } catch (IOException | RuntimeException e) {
+            // и ошибка кодирования сообщения не должна молча оставить соединение без писателя
             eventListener.onException(TCPConnection.this, e);
             // так как случилось исключение мы разрываем поток
             disconnect();
         }
     }
 
+    // копируем сообщение в outBuf; если не помещается - отправляем то, что набрали
+    private void bufferWrite(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (outLen == outBuf.length) flushOut();
+            int n = Math.min(buf.remaining(), outBuf.length - outLen);
+            buf.get(outBuf, outLen, n);
+            outLen += n;
+        }
+    }
+
+    private void flushOut() throws IOException {
+        if (outLen == 0) return;
+        // пока write() висит на полном буфере сокета, таймер видит, сколько он уже ждет
+        writeStartNanos = System.nanoTime();
+        out.write(outBuf, 0, outLen);
+        writeStartNanos = 0;
+        lastWriteNanos = System.nanoTime();
+        NetworkMetrics.BYTES_OUT.add(outLen);
+        outLen = 0;
+    }
+
+    // сообщение взято в запись: счетчик и сколько оно ждало в очереди
+    private static void sent(OutboundMessage message){
+        long created = message.getCreatedNanos();
+        if (created == 0) return;
+        NetworkMetrics.MESSAGES_OUT.increment();
+        NetworkMetrics.SEND_LATENCY.record(System.nanoTime() - created);
+    }
+
+    // HELLO и переключение писателя на кадры - все записанное после него уже в бинарном протоколе
+    private void writeHello() throws IOException {
+        helloPending = false;
+        binaryOut = true;
+        bufferWrite(Frame.hello());
+    }
+
+    // =======События декодера (поток чтения или NioEventLoop)=======
+
+    void deliverLine(String value){
+        NetworkMetrics.MESSAGES_IN.increment();
+        //  отдаем строчку eventListener (передаем туда объект соединения и строчку)
+        eventListener.onReceiveString(TCPConnection.this, value);
+    }
+
+    void deliverFrame(byte type, long senderId, long seq, ByteBuffer payload){
+        NetworkMetrics.MESSAGES_IN.increment();
+        eventListener.onReceiveFrame(TCPConnection.this, type, senderId, seq, payload);
+    }
+
+    // Лимит скорости: пропустить ли входящее сообщение размером size байт (вызывает декодер до создания строчки).
+    // THROTTLE пропускает всегда, но запоминает паузу - ее выдержим после разбора всего куска
+    boolean admit(int size){
+        RateLimiter rateLimiter = limiter;
+        if (rateLimiter == null) return true;
+        if (closed.get()) return false;
+        long wait = rateLimiter.admit(size);
+        if (wait >= 0) {
+            if (wait > throttleNanos) throttleNanos = wait;
+            return true;
+        }
+        NetworkMetrics.RATE_LIMITED.increment();
+        if (RateLimiter.POLICY == RateLimitPolicy.DISCONNECT) {
+            eventListener.onException(TCPConnection.this, new IOException("Rate limit exceeded, disconnecting"));
+            disconnect();
+        }
+        return false;
+    }
+
+    // кусок чтения разобран - общие лимиты скорости считаются одним обращением на кусок
+    private void chunkDecoded(){
+        RateLimiter rateLimiter = limiter;
+        if (rateLimiter == null) return;
+        long wait = rateLimiter.endOfChunk();
+        if (wait > throttleNanos) throttleNanos = wait;
+    }
+
+    // THROTTLE в блокирующем режиме: поток чтения спит, клиента тормозит заполненное TCP окно
+    private void throttleBlocking(){
+        final long until = System.nanoTime() + throttleNanos;
+        throttleNanos = 0;
+        NetworkMetrics.THROTTLED.increment();
+        // пауза - наше решение, а не молчание собеседника: таймаут чтения считаем от ее конца
+        lastReadNanos = until;
+        long left;
+        while ((left = until - System.nanoTime()) > 0 && !rxThread.isInterrupted()) LockSupport.parkNanos(left);
+    }
+
+    // собеседник проверяет, живы ли мы, - отвечаем
+    void deliverPing(){
+        peerHeartbeats = true;
+        send(PONG);
+    }
+
+    // ответ на наш PING; сам факт чтения уже учтен в lastReadNanos
+    void deliverPong(){
+        peerHeartbeats = true;
+    }
+
+    // собеседник перешел на кадры; если это не ответ на наш HELLO - отвечаем своим
+    void deliverHello(){
+        // бинарный протокол и heartbeat появились вместе - кто знает HELLO, знает и PING
+        peerHeartbeats = true;
+        if (helloSent) return;
+        helloSent = true;
+        helloPending = true;
+        // будим писателя: HELLO уйдет перед следующим сообщением из очереди
+        if (channel != null) scheduleFlush();
+        else outbound.offer(WAKE_UP);
+    }
+
     // оборвать соединение (чтобы снаружи порвать соединение в любой момент)
-    public synchronized void  disconnect (){
-        // прерываем поток
+    public void disconnect (){
+        if (channel != null) {
+            // закрывать канал можно только из его цикла
+            if (loop.inLoop()) closeNow();
+            else loop.execute(this::closeNow);
+            return;
+        }
+        blockingDisconnect();
+    }
+
+    private void blockingDisconnect(){
+        if (!closed.compareAndSet(false, true)) return;
+        NetworkMetrics.CONNECTIONS_CLOSED.increment();
+        cancelIdleChecks();
+        // прерываем потоки
         rxThread.interrupt();
+        txThread.interrupt();
+        outbound.clear();
         // закрываем поток
         try {
             socket.close();
@@ -131,6 +520,187 @@ public class TCPConnection {
         }
     }
 
+    // =======Неблокирующий режим (вызывается только из потока NioEventLoop)=======
+
+    private void scheduleFlush(){
+        if (closed.get()) return;
+        // Одна задача отправки на все строчки, накопившиеся до ее выполнения. Даже из своего цикла
+        // не пишем сразу: send() зовут под блокировкой комнаты, а ошибка записи закрыла бы соединение
+        // и вызвала onDisconnect прямо оттуда. Задача выполнится в этой же итерации цикла
+        if (flushScheduled.compareAndSet(false, true)) loop.execute(this::onWritable);
+    }
+
+    // в сокете есть данные - читаем в общий буфер цикла и режем на строчки и кадры
+    void onReadable(ByteBuffer readBuffer){
+        try {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                // клиент закрыл соединение
+                closeNow();
+                return;
+            }
+            lastReadNanos = System.nanoTime();
+            NetworkMetrics.BYTES_IN.add(n);
+            readBuffer.flip();
+            decoder.decode(readBuffer);
+            chunkDecoded();
+            if (throttleNanos > 0 && !closed.get()) throttleNio();
+        } catch (IOException | RuntimeException e) {
+            eventListener.onException(TCPConnection.this, e);
+            closeNow();
+        }
+    }
+
+    // THROTTLE в неблокирующем режиме: снимаем OP_READ, а через паузу таймер возвращает его в потоке цикла
+    private void throttleNio(){
+        final long pause = throttleNanos;
+        throttleNanos = 0;
+        NetworkMetrics.THROTTLED.increment();
+        lastReadNanos = System.nanoTime() + pause;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        TimerWheel.shared().schedule(() -> loop.execute(this::resumeReading), pause);
+    }
+
+    private void resumeReading(){
+        if (closed.get()) return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    // пишем очередь, пока сокет принимает; если не принял - ждем OP_WRITE
+    void onWritable(){
+        flushScheduled.set(false);
+        if (closed.get()) return;
+        try {
+            // Пакет забираем из очереди целиком до записи, чтобы DROP_OLDEST
+            // не выкинул сообщение на середине и не порвал строчку в потоке байт.
+            // Все сообщения, накопившиеся к этому моменту, уходят одним gathering write
+            if (inFlight == null) inFlight = new ByteBuffer[MAX_BATCH];
+            while (inFlightStart < inFlightEnd || fillBatch()) {
+                long written = channel.write(inFlight, inFlightStart, inFlightEnd - inFlightStart);
+                if (written > 0) {
+                    lastWriteNanos = System.nanoTime();
+                    NetworkMetrics.BYTES_OUT.add(written);
+                }
+                while (inFlightStart < inFlightEnd && !inFlight[inFlightStart].hasRemaining()) inFlight[inFlightStart++] = null;
+                if (inFlightStart < inFlightEnd) {
+                    // сокет принял не все - допишем, когда освободится место; таймер считает, сколько ждем
+                    if (writeStartNanos == 0) writeStartNanos = System.nanoTime();
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            writeStartNanos = 0;
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException | RuntimeException e) {
+            eventListener.onException(TCPConnection.this, e);
+            closeNow();
+        }
+    }
+
+    // набираем следующий пакет из очереди; false - отправлять нечего
+    private boolean fillBatch(){
+        inFlightStart = 0;
+        inFlightEnd = 0;
+        while (inFlightEnd < inFlight.length) {
+            if (helloPending) {
+                // HELLO и все после него - уже кадры
+                helloPending = false;
+                binaryOut = true;
+                inFlight[inFlightEnd++] = Frame.hello();
+                continue;
+            }
+            OutboundMessage message = outbound.poll();
+            if (message == null) break;
+            ByteBuffer buf = message.encode(binaryOut);
+            if (buf != null && buf.hasRemaining()) {
+                inFlight[inFlightEnd++] = buf;
+                sent(message);
+            }
+        }
+        return inFlightEnd > 0;
+    }
+
+    // закрываем канал и один раз сообщаем о дисконнекте
+    void closeNow(){
+        if (!closed.compareAndSet(false, true)) return;
+        NetworkMetrics.CONNECTIONS_CLOSED.increment();
+        cancelIdleChecks();
+        key.cancel();
+        outbound.clear();
+        inFlight = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            eventListener.onException(TCPConnection.this, e);
+        }
+        eventListener.onDisconnect(TCPConnection.this);
+    }
+
+    // =======Heartbeat и таймауты (поток TimerWheel)=======
+
+    private void startIdleChecks(){
+        if (IDLE_CHECKS) scheduleIdleCheck(nextCheckNanos(0, 0, 0));
+    }
+
+    private void scheduleIdleCheck(long delayNanos){
+        idleCheck = TimerWheel.shared().schedule(this::checkIdle, delayNanos);
+    }
+
+    private void cancelIdleChecks(){
+        TimerWheel.Timeout timeout = idleCheck;
+        if (timeout != null) timeout.cancel();
+    }
+
+    private boolean isClosed(){
+        return closed.get();
+    }
+
+    // Одна задача в таймере на соединение: смотрит метки времени и ставит себя снова на ближайший срок.
+    // Чтение и запись только обновляют метки, таймер на каждое сообщение не переставляется
+    private void checkIdle(){
+        if (isClosed()) return;
+        final long now = System.nanoTime();
+        final boolean heartbeats = peerHeartbeats;
+        // молчание собеседника без heartbeat ничего не значит - таймаут чтения только для тех, кто отвечает на PING
+        final long readIdle = heartbeats ? now - lastReadNanos : 0;
+        if (READ_TIMEOUT_NANOS > 0 && readIdle >= READ_TIMEOUT_NANOS) {
+            idleTimeout("Read timeout: nothing received for " + TimeUnit.NANOSECONDS.toMillis(readIdle) + " ms");
+            return;
+        }
+        final long writeStart = writeStartNanos;
+        final long writeStuck = writeStart == 0 ? 0 : now - writeStart;
+        if (WRITE_TIMEOUT_NANOS > 0 && writeStuck >= WRITE_TIMEOUT_NANOS) {
+            idleTimeout("Write timeout: peer is not reading for " + TimeUnit.NANOSECONDS.toMillis(writeStuck) + " ms");
+            return;
+        }
+        long writeIdle = now - lastWriteNanos;
+        if (PING_INTERVAL_NANOS > 0 && (heartbeats || dialed)
+                && writeIdle >= PING_INTERVAL_NANOS && writeStart == 0 && outbound.size() == 0) {
+            // давно молчим - PING заодно проверит, что собеседник отвечает (его PONG обновит lastReadNanos)
+            send(PING);
+            writeIdle = 0;
+        }
+        scheduleIdleCheck(nextCheckNanos(readIdle, writeStuck, writeIdle));
+    }
+
+    // через сколько наступит ближайший из сроков
+    private static long nextCheckNanos(long readIdle, long writeStuck, long writeIdle){
+        long next = Long.MAX_VALUE;
+        if (READ_TIMEOUT_NANOS > 0) next = Math.min(next, READ_TIMEOUT_NANOS - readIdle);
+        if (WRITE_TIMEOUT_NANOS > 0) next = Math.min(next, WRITE_TIMEOUT_NANOS - writeStuck);
+        // PING не отправили, потому что очередь не пуста, - проверим еще раз через интервал
+        if (PING_INTERVAL_NANOS > 0) next = Math.min(next, writeIdle < PING_INTERVAL_NANOS ? PING_INTERVAL_NANOS - writeIdle : PING_INTERVAL_NANOS);
+        return next;
+    }
+
+    // собеседник не отвечает - рвем соединение, дальше обычный путь onDisconnect
+    private void idleTimeout(String reason){
+        NetworkMetrics.TIMEOUTS.increment();
+        eventListener.onException(TCPConnection.this, new SocketTimeoutException(reason));
+        disconnect();
+    }
+
     // овверайдим toString, чтобы видеть кто подключился/отключился (стандартная реализация полиморфизма)
     @Override
     public String toString (){
@@ -1,5 +1,8 @@
 package ru.sxtim.chat.network;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 /** Слой абстракции для того чтобы TCPConnection использовать в разных частях кода
  *  и по разному реагировать на события;
  *  В ClientWindow и ServerChat реализуем эти абстракции;
@@ -15,6 +18,14 @@ public interface TCPConnectionListener {
     // Соединение приняло строчку. Смотрим в обработчике, что за строчку мы приняли
     void onReceiveString(TCPConnection tcpConnection, String value);
 
+    // Соединение приняло бинарный кадр (Frame). seq - номер сообщения в комнате (0 - без номера).
+    // payload - срез буфера чтения, он действителен только во время вызова.
+    // По умолчанию текстовый кадр превращается в строчку, чтобы старым слушателям ничего не менять;
+    // кому String не нужен (например, серверу для рассылки), переопределяет этот метод
+    default void onReceiveFrame(TCPConnection tcpConnection, byte type, long senderId, long seq, ByteBuffer payload) {
+        if (type == Frame.TEXT) onReceiveString(tcpConnection, StandardCharsets.UTF_8.decode(payload).toString());
+    }
+
     // Disconnect - соединение порвалось. Это событие тоже может быть интересно снаружи
     void onDisconnect(TCPConnection tcpConnection);
 
@@ -0,0 +1,61 @@
+package ru.sxtim.chat.network;
+
+import java.lang.reflect.Method;
+
+/** ThreadMode - на каких потоках работают циклы приема TCPConnection и цикл accept() сервера;
+ *  PLATFORM - обычные потоки ОС: под каждый резервируется стек (по умолчанию -Xss 1 MB виртуальной памяти),
+ *  поэтому блокирующий сервер упирается в лимиты потоков и памяти на нескольких тысячах клиентов.
+ *  VIRTUAL - виртуальные потоки JDK 21+: поток, ждущий в InputStream.read(), отпускает поток-носитель,
+ *  а его стек лежит в куче и занимает сотни байт - единицы KB. Тогда на соединение в основном
+ *  приходятся его byte[] буферы: кусок чтения (8 KB), пакет записи (16 KB) и хвост незаконченной
+ *  строчки или кадра в InboundDecoder (выделяется только пока он нужен), а не стек.
+ *  Выбирается при запуске: -Dchat.threads=platform|virtual.
+ *  Виртуальные потоки берем через reflection, чтобы код собирался и на старых JDK;
+ *  если JDK их не умеет - работаем на обычных потоках.
+ */
+public enum ThreadMode {
+    PLATFORM,
+    VIRTUAL;
+
+    //========Fields===========
+    private static final ThreadMode CURRENT = resolve(System.getProperty("chat.threads", "platform"));
+
+    // Thread.ofVirtual() и Thread.Builder.name()/unstarted(), если они есть в этой JDK
+    private static Method ofVirtual;
+    private static Method builderName;
+    private static Method builderUnstarted;
+
+    // =======Functions=======
+
+    /** Режим, выбранный свойством chat.threads */
+    public static ThreadMode current() {
+        return CURRENT;
+    }
+
+    /** Создает (но не запускает) поток в этом режиме */
+    public Thread newThread(String name, Runnable task) {
+        if (this == VIRTUAL) {
+            try {
+                Object builder = builderName.invoke(ofVirtual.invoke(null), name);
+                return (Thread) builderUnstarted.invoke(builder, task);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Cannot create virtual thread", e);
+            }
+        }
+        return new Thread(task, name);
+    }
+
+    private static ThreadMode resolve(String value) {
+        if (!"virtual".equalsIgnoreCase(value)) return PLATFORM;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            builderName = builder.getMethod("name", String.class);
+            builderUnstarted = builder.getMethod("unstarted", Runnable.class);
+            return VIRTUAL;
+        } catch (ReflectiveOperationException e) {
+            System.out.println("Virtual threads are not available in this JDK, using platform threads");
+            return PLATFORM;
+        }
+    }
+}
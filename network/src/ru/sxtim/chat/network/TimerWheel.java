@@ -0,0 +1,124 @@
+package ru.sxtim.chat.network;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/** TimerWheel - один поток-таймер на все соединения процесса (хешированное колесо таймеров);
+ *  Вместо потока или ScheduledFuture на каждое соединение задачи раскладываются по ячейкам колеса:
+ *  ячейка = (текущий тик + задержка в тиках) % WHEEL_SIZE, а задачи с задержкой больше оборота
+ *  ждут нужное число оборотов. Постановка и отмена - O(1) и без блокировок:
+ *  новые задачи идут через очередь, а отмененные просто пропускаются, когда до них дойдет колесо.
+ *  Точность - один тик (-Dchat.timer.tickMs), этого достаточно для таймаутов и heartbeat.
+ *  Задачи выполняются в потоке таймера, поэтому они должны быть короткими и не блокироваться.
+ */
+final class TimerWheel implements Runnable {
+    //========Fields===========
+    // длительность тика (-Dchat.timer.tickMs)
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Long.getLong("chat.timer.tickMs", 100)));
+    // число ячеек - степень двойки, чтобы вместо % была маска
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private final ArrayDeque<Timeout>[] wheel;
+    // задачи из других потоков, еще не разложенные по ячейкам
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private final long startNanos;
+    // сколько тиков уже обработано; меняет только поток таймера
+    private long tick;
+
+    //=============Constructors============
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private TimerWheel() {
+        wheel = new ArrayDeque[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) wheel[i] = new ArrayDeque<>();
+        startNanos = System.nanoTime();
+        thread = new Thread(this, "chat-timer");
+        // таймер не должен держать процесс, когда все остальное уже остановлено
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // общий таймер создается при первом обращении
+    private static final class Holder {
+        static final TimerWheel INSTANCE = new TimerWheel();
+    }
+
+    static TimerWheel shared() {
+        return Holder.INSTANCE;
+    }
+
+    // =======Functions=======
+
+    // выполнить task в потоке таймера не раньше чем через delayNanos (с точностью до тика)
+    Timeout schedule(Runnable task, long delayNanos) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, delayNanos));
+        added.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            // спим до конца текущего тика
+            long deadline = (tick + 1) * TICK_NANOS;
+            long left;
+            while ((left = deadline - (System.nanoTime() - startNanos)) > 0) LockSupport.parkNanos(left);
+
+            transferAdded();
+            ArrayDeque<Timeout> bucket = wheel[(int) (tick & MASK)];
+            // задачи, которые ждут следующего оборота, возвращаем в конец той же ячейки
+            for (int n = bucket.size(); n > 0; n--) {
+                Timeout timeout = bucket.poll();
+                if (timeout.cancelled) continue;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                    bucket.add(timeout);
+                    continue;
+                }
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    // ошибка одной задачи не должна останавливать таймер для всех остальных
+                    System.out.println("Timer task exception: " + e);
+                }
+            }
+            tick++;
+        }
+    }
+
+    // раскладываем новые задачи по ячейкам
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) continue;
+            // тик N обрабатывается по окончании тика, в момент (N + 1) * TICK_NANOS, поэтому
+            // берем тик, внутри которого лежит срок, но не раньше текущего (он сейчас обрабатывается)
+            long target = Math.max(tick, timeout.deadlineNanos / TICK_NANOS);
+            timeout.rounds = (target - tick) / WHEEL_SIZE;
+            wheel[(int) (target & MASK)].add(timeout);
+        }
+    }
+
+    /** Запланированная задача; cancel() можно вызывать из любого потока */
+    static final class Timeout {
+        private final Runnable task;
+        // срок в наносекундах от startNanos таймера
+        private final long deadlineNanos;
+        // сколько еще полных оборотов колеса ждать; меняет только поток таймера
+        private long rounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadlineNanos) {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ru.sxtim.chat.network;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** TokenBucket - ограничение скорости без блокировок и без потока, который пополняет ведро;
+ *  Хранится одно число - момент, к которому "оплачены" все уже выданные токены (GCRA, virtual scheduling).
+ *  Каждый токен сдвигает этот момент на 1 / rate секунды; пока он опережает текущее время не больше
+ *  чем на burst, токены выдаются сразу. Взятие - один compareAndSet, поэтому одним ведром
+ *  могут пользоваться много потоков сразу.
+ */
+final class TokenBucket {
+    //========Fields===========
+    // токенов в секунду
+    private final long rate;
+    // сколько можно взять разом сверх скорости (в наносекундах "долга")
+    private final long burstNanos;
+    private final AtomicLong paidUntil = new AtomicLong(System.nanoTime());
+
+    //=============Constructors============
+    // burstSeconds - сколько секунд скорости можно выбрать одним всплеском
+    TokenBucket(long rate, double burstSeconds) {
+        if (rate <= 0) throw new IllegalArgumentException("rate must be > 0: " + rate);
+        this.rate = rate;
+        this.burstNanos = (long) (burstSeconds * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    // =======Functions=======
+
+    // взять tokens в любом случае; возвращает, сколько наносекунд надо переждать, чтобы вернуться в лимит (0 - не надо)
+    long reserve(long tokens) {
+        final long cost = cost(tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long current = paidUntil.get();
+            long next = Math.max(current, now) + cost;
+            if (paidUntil.compareAndSet(current, next)) return Math.max(0, next - now - burstNanos);
+        }
+    }
+
+    // взять tokens, только если это не превышает лимит
+    boolean tryAcquire(long tokens) {
+        final long cost = cost(tokens);
+        while (true) {
+            long now = System.nanoTime();
+            long current = paidUntil.get();
+            long next = Math.max(current, now) + cost;
+            if (next - now > burstNanos) return false;
+            if (paidUntil.compareAndSet(current, next)) return true;
+        }
+    }
+
+    // вернуть взятые, но не использованные токены (или взятые зря, если сообщение отклонил другой лимит)
+    void refund(long tokens) {
+        paidUntil.addAndGet(-cost(tokens));
+    }
+
+    private long cost(long tokens) {
+        return tokens * TimeUnit.SECONDS.toNanos(1) / rate;
+    }
+}
@@ -0,0 +1,63 @@
+package ru.sxtim.chat.network;
+
+/** Utf8 - кодирование строчки в UTF-8 без промежуточных массивов;
+ *  getBytes() создает лишний массив на каждое сообщение, а здесь сначала считаем точную длину,
+ *  потом пишем байты прямо в массив нужного размера (OutboundMessage.text).
+ *  Одиночные суррогаты заменяем на '?', как это делает String.getBytes().
+ */
+final class Utf8 {
+
+    private Utf8() {
+    }
+
+    // =======Functions=======
+
+    // сколько байт займет строчка в UTF-8
+    static int encodedLength(String value) {
+        final int n = value.length();
+        int len = n;
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) continue;
+            if (c < 0x800) {
+                len += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                // пара суррогатов - 2 char, 4 байта
+                len += 2;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // одиночный суррогат станет '?'
+            } else {
+                len += 2;
+            }
+        }
+        return len;
+    }
+
+    // пишет строчку в dst начиная с pos, возвращает позицию после последнего байта
+    static int encode(String value, byte[] dst, int pos) {
+        final int n = value.length();
+        for (int i = 0; i < n; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                dst[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                dst[pos++] = (byte) (0xC0 | (c >> 6));
+                dst[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                dst[pos++] = (byte) (0xF0 | (cp >> 18));
+                dst[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                dst[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                dst[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                dst[pos++] = '?';
+            } else {
+                dst[pos++] = (byte) (0xE0 | (c >> 12));
+                dst[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                dst[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,80 @@
+package ru.sxtim.chat.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** AsyncLog - лог сервера, который не тормозит рассылку;
+ *  System.out.println() синхронизирован и пишет в консоль прямо в потоке вызова - на каждом сообщении
+ *  все потоки соединений выстраивались в очередь к консоли. Здесь вызывающий поток только кладет запись
+ *  в очередь без блокировок, а строку собирает и печатает отдельный поток "chat-log".
+ *  Не больше -Dchat.log.maxPerSecond записей в секунду (по умолчанию 100), остальные только считаются,
+ *  и раз в секунду печатается, сколько записей пропущено.
+ */
+final class AsyncLog implements Runnable {
+    //========Fields===========
+    private static final int MAX_PER_SECOND = Math.max(1, Integer.getInteger("chat.log.maxPerSecond", 100));
+    // как часто поток лога просыпается напечатать накопившееся
+    private static final long DRAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final AsyncLog INSTANCE = new AsyncLog();
+
+    private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+    // сколько записей еще можно принять в этой секунде; пополняет поток лога
+    private final AtomicInteger permits = new AtomicInteger(MAX_PER_SECOND);
+    private final LongAdder suppressed = new LongAdder();
+
+    //=============Constructors============
+    private AsyncLog() {
+        Thread thread = new Thread(this, "chat-log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // =======Functions=======
+
+    /** Записать prefix + value; value превращается в строку уже в потоке лога */
+    static void log(String prefix, Object value) {
+        INSTANCE.offer(prefix, value);
+    }
+
+    private void offer(String prefix, Object value) {
+        // лимит исчерпан - даже не пишем в общий счетчик разрешений, только считаем пропуск
+        if (permits.get() <= 0 || permits.getAndDecrement() <= 0) {
+            suppressed.increment();
+            return;
+        }
+        queue.add(new Entry(prefix, value));
+    }
+
+    @Override
+    public void run() {
+        long nextRefill = System.nanoTime() + SECOND_NANOS;
+        while (true) {
+            Entry entry;
+            while ((entry = queue.poll()) != null) System.out.println(entry.prefix + entry.value);
+            long now = System.nanoTime();
+            if (now - nextRefill >= 0) {
+                nextRefill = now + SECOND_NANOS;
+                long skipped = suppressed.sumThenReset();
+                if (skipped > 0) System.out.println("... " + skipped + " log records suppressed (chat.log.maxPerSecond=" + MAX_PER_SECOND + ")");
+                permits.set(MAX_PER_SECOND);
+            }
+            LockSupport.parkNanos(DRAIN_NANOS);
+        }
+    }
+
+    private static final class Entry {
+        final String prefix;
+        final Object value;
+
+        Entry(String prefix, Object value) {
+            this.prefix = prefix;
+            this.value = value;
+        }
+    }
+}
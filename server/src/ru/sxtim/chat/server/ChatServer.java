@@ -1,11 +1,18 @@
 package ru.sxtim.chat.server;
 
+import ru.sxtim.chat.network.Frame;
+import ru.sxtim.chat.network.NioServer;
+import ru.sxtim.chat.network.OutboundMessage;
 import ru.sxtim.chat.network.TCPConnection;
 import ru.sxtim.chat.network.TCPConnectionListener;
+import ru.sxtim.chat.network.ThreadMode;
 
 import java.io.IOException;
 import java.net.ServerSocket;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /** Server  - некая сущность которая может принимать сообщения и рассылать нескольким клиентам
 * Может держать несколько соединений активными;
@@ -23,16 +30,95 @@ public class ChatServer implements TCPConnectionListener {
         new ChatServer();
     }
     //============ Fields ==============
-    //Для неограниченного количества соединений создаем ArrayList
-    // реализует функционал списка
-    private final ArrayList<TCPConnection> connections = new ArrayList<>();
+    // порт для клиентов (-Dchat.server.port) - разный у узлов кластера на одной машине
+    private static final int PORT = Integer.getInteger("chat.server.port", 8189);
+    // движок сервера: blocking - поток на каждого клиента, nio - Selector и пул потоков NioEventLoop
+    // выбирается при запуске: java -Dchat.server.engine=nio ...
+    private static final String ENGINE = System.getProperty("chat.server.engine", "blocking");
+    // сколько потоков обслуживают соединения в режиме nio
+    private static final int NIO_LOOPS = Integer.getInteger("chat.server.nioLoops", Runtime.getRuntime().availableProcessors());
+
+    // Соединения и их состояние на ConcurrentHashMap: добавление и удаление не блокируют друг друга
+    // (блокировки разбиты по корзинам), а обход идет вообще без блокировок.
+    // CopyOnWriteArrayList тут не подходит - каждое подключение копировало бы весь массив из тысяч клиентов
+    private final ConcurrentHashMap<TCPConnection, ChatSession> sessions = new ConcurrentHashMap<>();
+    // комнаты: сообщение получают только участники комнаты отправителя
+    private final RoomRegistry rooms;
+    // журнал сообщений на диске (-Dchat.journal.dir=путь), null - не включен
+    private final MessageJournal journal;
+    // связи с другими узлами (-Dchat.cluster.nodes), null - сервер работает один
+    private final Cluster cluster;
 
 
     // ===========Constructors============
     private ChatServer() {
-        System.out.println("Server running...");
+        journal = openJournal();
+        rooms = new RoomRegistry(journal);
+        if (journal != null) {
+            // возвращаем комнатам историю и номера сообщений, записанные до перезапуска
+            journal.recover((room, seq, senderId, type, payload) ->
+                    rooms.restore(room, OutboundMessage.frame(type, senderId, payload).withSeq(seq)));
+            journal.start();
+            // при остановке сервера дописываем и сбрасываем журнал
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    journal.close();
+                } catch (IOException e) {
+                    System.out.println("Journal exception: " + e);
+                }
+            }));
+        }
+        cluster = Cluster.fromProperties(this::onRelay);
+        if (cluster != null) {
+            try {
+                cluster.start();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        try {
+            new ServerMetrics(sessions, rooms, cluster).start();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        System.out.println("Server running (" + ENGINE + ") on port " + PORT + "...");
+        if ("nio".equals(ENGINE)) runNio();
+        else runOnThread(this::runBlocking);
+    }
+
+    // цикл accept() крутим в потоке выбранного режима (-Dchat.threads=platform|virtual)
+    private static void runOnThread(Runnable task) {
+        Thread acceptThread = ThreadMode.current().newThread("chat-accept", task);
+        acceptThread.start();
+        try {
+            acceptThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static MessageJournal openJournal() {
+        try {
+            return MessageJournal.fromProperties();
+        } catch (IOException e) {
+            // без журнала, который просили включить, сервер не запускаем
+            throw new RuntimeException(e);
+        }
+    }
+
+    // неблокирующий режим: тысячи клиентов на нескольких потоках
+    private void runNio() {
+        try (NioServer server = new NioServer(this, PORT, NIO_LOOPS)) {
+            server.run();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // блокирующий режим: на каждого клиента свой поток TCPConnection
+    private void runBlocking() {
         // создаем сервер сокет, который слушает порт 8189
-        try(ServerSocket serverSocket = new ServerSocket(8189)){// используем try with resources,
+        try(ServerSocket serverSocket = new ServerSocket(PORT)){// используем try with resources,
                                                                         //он умеет закрывать ресурсы, которые захвачены
             /** Cлушаем входящее соединение;
             * В бесконечном цикле висим в методе accept()(ждет нового соединения и как только это соединение установилось,
@@ -60,40 +146,138 @@ public class ChatServer implements TCPConnectionListener {
     }
 
     /** Описываем реакции на события
-     * Так как клиентов будет очень много - синхронизируем методы (чтобы из разных потоков в них нельзя было попасть)
+     * Методы вызываются из потоков разных соединений одновременно. Общей блокировки нет:
+     * соединения и комнаты потокобезопасны сами, поэтому медленный клиент при рассылке
+     * не задерживает подключения, отключения и сообщения остальных.
+     * Строчка, которая начинается с '/', - команда серверу:
+     * /join комната - войти в комнату и писать в нее, /leave [комната] - выйти, /rooms - список комнат,
+     * /since N - повторить сообщения текущей комнаты с номером больше N (продолжить после переподключения).
+     * При входе в комнату клиент сразу получает ее историю
      */
 
 
-    @Override// когда Connection готов, то добавляем его в список соединений
-    public synchronized void onConnectionReady(TCPConnection tcpConnection) {
-        connections.add(tcpConnection);
-        // если клиент подключился, то всех оповещаем
-        sendToAllConnections("Client connected: " + tcpConnection);
+    @Override// когда Connection готов, то запоминаем его и сажаем в общую комнату
+    public void onConnectionReady(TCPConnection tcpConnection) {
+        sessions.put(tcpConnection, new ChatSession());
+        join(tcpConnection, RoomRegistry.DEFAULT_ROOM);
+    }
+
+    @Override// если приняли строчку - это команда или сообщение в текущую комнату
+    public void onReceiveString(TCPConnection tcpConnection, String value) {
+        ChatSession session = sessions.get(tcpConnection);
+        if (session == null) return;
+        if (value.startsWith("/")) handleCommand(tcpConnection, session, value);
+        else sendToRoom(session.getCurrentRoom(), OutboundMessage.text(tcpConnection.getId(), value), tcpConnection);
+    }
+
+    @Override// бинарный кадр рассылаем как есть, не превращая данные в String
+    public void onReceiveFrame(TCPConnection tcpConnection, byte type, long senderId, long seq, ByteBuffer payload) {
+        if (type != Frame.TEXT) return;
+        ChatSession session = sessions.get(tcpConnection);
+        if (session == null) return;
+        // команды редкие - только их и декодируем
+        if (payload.hasRemaining() && payload.get(payload.position()) == '/') {
+            handleCommand(tcpConnection, session, StandardCharsets.UTF_8.decode(payload).toString());
+            return;
+        }
+        // отправителя ставит сервер, клиенту верить нельзя
+        sendToRoom(session.getCurrentRoom(), OutboundMessage.frame(type, tcpConnection.getId(), payload), tcpConnection);
+    }
+
+    @Override// если Connection отвалился, то выводим его из всех комнат
+    public void onDisconnect(TCPConnection tcpConnection) {
+        // удаляем один раз, даже если о дисконнекте сообщили повторно
+        ChatSession session = sessions.remove(tcpConnection);
+        if (session == null) return;
+        for (String room : session.getRooms()) {
+            if (rooms.leave(room, tcpConnection)) sendToRoom(room, OutboundMessage.text(0, "Client disconnected: " + tcpConnection), null);
+        }
+    }
+
+    @Override// если исключение пишем в лог (массовые обрывы не должны тормозить потоки соединений)
+    public void onException(TCPConnection tcpConnection, Exception e) {
+        AsyncLog.log("TCPConnection exception: ", e);
     }
 
-    @Override// если приняли строчку - нужно разослать всем клиентам
-    public  synchronized void onReceiveString(TCPConnection tcpConnection, String value) {
-        // отправляем всем принятую строчку
-        sendToAllConnections(value);
+    // =======Комнаты=======
+
+    private void handleCommand(TCPConnection tcpConnection, ChatSession session, String line) {
+        String[] parts = line.trim().split("\\s+", 2);
+        String arg = parts.length > 1 ? parts[1] : "";
+        switch (parts[0]) {
+            case "/join":
+                if (!RoomRegistry.isValidName(arg)) reply(tcpConnection, "Usage: /join <room>");
+                else join(tcpConnection, arg);
+                break;
+            case "/leave":
+                String room = arg.isEmpty() ? session.getCurrentRoom() : arg;
+                if (room == null || !rooms.leave(room, tcpConnection)) {
+                    reply(tcpConnection, "You are not in room: " + arg);
+                    break;
+                }
+                session.left(room);
+                sendToRoom(room, OutboundMessage.text(0, "Client left " + room + ": " + tcpConnection), null);
+                reply(tcpConnection, "Left " + room + (session.getCurrentRoom() == null ? ", you are in no room now" : ", now in " + session.getCurrentRoom()));
+                break;
+            case "/since":
+                long sinceSeq;
+                try {
+                    sinceSeq = Long.parseLong(arg);
+                } catch (NumberFormatException e) {
+                    reply(tcpConnection, "Usage: /since <seq>");
+                    break;
+                }
+                Room current = session.getCurrentRoom() == null ? null : rooms.get(session.getCurrentRoom());
+                if (current == null || !current.replay(tcpConnection, sinceSeq)) reply(tcpConnection, "Nothing to replay");
+                break;
+            case "/rooms":
+                StringBuilder sb = new StringBuilder("Rooms:");
+                for (Map.Entry<String, Integer> e : rooms.sizes().entrySet()) sb.append(' ').append(e.getKey()).append('(').append(e.getValue()).append(')');
+                reply(tcpConnection, sb.toString());
+                break;
+            default:
+                reply(tcpConnection, "Unknown command: " + parts[0]);
+        }
+    }
+
+    private void join(TCPConnection tcpConnection, String room) {
+        ChatSession session = sessions.get(tcpConnection);
+        if (session == null) return;
+        // вход в комнату сразу ставит клиенту ее историю
+        rooms.join(room, tcpConnection);
+        session.joined(room);
+        // если клиент подключился к комнате, то оповещаем ее участников
+        sendToRoom(room, OutboundMessage.text(0, "Client connected to " + room + ": " + tcpConnection), null);
     }
 
-    @Override// если Connection отвалился, то удаляем его из списка соединений
-    public  synchronized void onDisconnect(TCPConnection tcpConnection) {
-        connections.remove(tcpConnection);
-        sendToAllConnections("Client connected: " + tcpConnection);
+    // ответ серверу только этому клиенту
+    private static void reply(TCPConnection tcpConnection, String value) {
+        tcpConnection.send(OutboundMessage.text(0, value));
     }
 
-    @Override// если исключение пишем в консоль
-    public synchronized void onException(TCPConnection tcpConnection, Exception e) {
-        System.out.println("TCPConnection exception: " + e);
+    // метод, который рассылает сообщение участникам комнаты (сообщения, кто подключился, кто отключился);
+    // сообщение кодируется в байты один раз на всех получателей (строчкой и/или кадром), а не по разу на каждого
+    private void sendToRoom(String roomName, OutboundMessage message, TCPConnection sender){
+        Room room = roomName == null ? null : rooms.get(roomName);
+        if (room == null) {
+            if (sender != null) reply(sender, "You are in no room, use /join <room>");
+            return;
+        }
+        // логируем строчку, которую отправляем; печатает поток лога, не этот
+        AsyncLog.log("[" + roomName + "] ", message);
+        // обход участников слабо согласованный - без блокировки и без ConcurrentModificationException,
+        // если кто-то входит или выходит прямо во время рассылки
+        room.broadcast(message);
+        // сообщение возникло на этом узле - отдаем его остальным узлам кластера
+        if (cluster != null) cluster.relay(roomName, message);
     }
 
-    // метод, который рассылает всем сообщения (кто подключился, кто отключился)
-    private void sendToAllConnections(String value){
-        // логируем строчку в консоль, которую отправляем
-        System.out.println(value);
-        // проходим по всему списку соединений и отправляем сообщение
-        final int cnt = connections.size();// получаем размер списка в переменную, чтобы не вызывался каждый раз метод size()(оптимизация)
-        for (int i = 0; i < cnt; i++) connections.get(i).sendString(value);
+    // сообщение от другого узла кластера: только своим участникам комнаты, дальше не пересылаем
+    private void onRelay(String roomName, OutboundMessage message) {
+        Room room = rooms.get(roomName);
+        // на этом узле в комнате никого нет
+        if (room == null) return;
+        AsyncLog.log("[" + roomName + "] ", message);
+        room.broadcast(message);
     }
 }
@@ -0,0 +1,41 @@
+package ru.sxtim.chat.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** ChatSession - состояние одного клиента на сервере: в каких он комнатах и куда уходят его сообщения */
+final class ChatSession {
+    //========Fields===========
+    // комнаты, в которых состоит клиент (нужны, чтобы при дисконнекте выйти из всех)
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    // текущая комната - в нее уходят сообщения клиента; null - ни в какой комнате
+    private volatile String currentRoom;
+
+    // =======Functions=======
+
+    String getCurrentRoom() {
+        return currentRoom;
+    }
+
+    void joined(String room) {
+        rooms.add(room);
+        currentRoom = room;
+    }
+
+    void left(String room) {
+        rooms.remove(room);
+        // вышли из текущей - сообщения пойдут в любую из оставшихся комнат
+        if (room.equals(currentRoom)) {
+            String next = null;
+            for (String r : rooms) {
+                next = r;
+                break;
+            }
+            currentRoom = next;
+        }
+    }
+
+    Set<String> getRooms() {
+        return rooms;
+    }
+}
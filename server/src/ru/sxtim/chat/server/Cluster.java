@@ -0,0 +1,266 @@
+package ru.sxtim.chat.server;
+
+import ru.sxtim.chat.network.OutboundMessage;
+import ru.sxtim.chat.network.OverflowPolicy;
+import ru.sxtim.chat.network.TCPConnection;
+import ru.sxtim.chat.network.TCPConnectionListener;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Cluster - несколько узлов ChatServer, связанных между собой обычными TCPConnection (бинарный протокол Frame);
+ *  Состав кластера статический: -Dchat.cluster.nodes=1=host:port,2=host:port,... и -Dchat.cluster.nodeId=1,
+ *  где host:port - адрес, на котором узел принимает соединения других узлов (не клиентов).
+ *  Узлы связаны каждый с каждым: соединение открывает узел с меньшим номером, раз в секунду проверяя,
+ *  что все связи есть. Сообщение от своего клиента узел рассылает у себя и отправляет каждому соседу
+ *  ровно один раз (один закодированный кадр на всех соседей); сосед рассылает его своим участникам комнаты
+ *  и дальше не пересылает. Номер сообщения = номер узла-источника (старшие 16 бит) + счетчик, повторы
+ *  (например, после переподключения) отбрасываются по окну последних номеров от каждого источника.
+ *  Номера seq и история комнат у каждого узла свои.
+ *  У связи своя очередь отправки (-Dchat.cluster.queueCapacity, по умолчанию 65536) с OverflowPolicy.BLOCK:
+ *  при всплеске отправитель ждет места, а не выбрасывает сообщения; связь рвется (с записью в лог),
+ *  только если сосед не читает дольше таймаута записи.
+ */
+final class Cluster implements TCPConnectionListener {
+    //========Fields===========
+    // типы кадров между узлами (у клиентов таких нет)
+    // NODE_HELLO: senderId - номер узла, seq - запуск узла (при перезапуске соседа окно повторов сбрасывается)
+    private static final byte NODE_HELLO = 16;
+    // RELAY: senderId - отправитель, seq - номер сообщения в кластере,
+    // payload - short длина названия комнаты, название (UTF-8), byte тип сообщения, данные сообщения
+    private static final byte RELAY = 17;
+    private static final int NODE_BITS = 48;
+    private static final long COUNTER_MASK = (1L << NODE_BITS) - 1;
+    // как часто проверяем связи с соседами
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int LINK_QUEUE_CAPACITY = Integer.getInteger("chat.cluster.queueCapacity", 65536);
+
+    private final int nodeId;
+    // узел -> адрес для соединений между узлами
+    private final Map<Integer, InetSocketAddress> nodes;
+    private final Receiver receiver;
+    // отличает этот запуск узла от предыдущих
+    private final long incarnation = System.currentTimeMillis();
+    private final AtomicLong nextCounter = new AtomicLong();
+    // связи, прошедшие NODE_HELLO: номер узла -> соединение, и обратно
+    private final ConcurrentHashMap<Integer, TCPConnection> links = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TCPConnection, Integer> linkNodes = new ConcurrentHashMap<>();
+    // узел-источник -> номера сообщений, которые уже видели
+    private final ConcurrentHashMap<Integer, DedupWindow> seen = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chat-cluster");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // куда отдавать сообщения, пришедшие от других узлов
+    interface Receiver {
+        void onRelay(String room, OutboundMessage message);
+    }
+
+    //=============Constructors============
+    private Cluster(int nodeId, Map<Integer, InetSocketAddress> nodes, Receiver receiver) {
+        this.nodeId = nodeId;
+        this.nodes = nodes;
+        this.receiver = receiver;
+    }
+
+    // кластер из системных свойств; null - chat.cluster.nodes не задан, узел работает один
+    static Cluster fromProperties(Receiver receiver) {
+        String spec = System.getProperty("chat.cluster.nodes");
+        if (spec == null || spec.trim().isEmpty()) return null;
+        Integer nodeId = Integer.getInteger("chat.cluster.nodeId");
+        Map<Integer, InetSocketAddress> nodes = parseNodes(spec);
+        if (nodeId == null || !nodes.containsKey(nodeId)) {
+            throw new IllegalArgumentException("chat.cluster.nodeId must be one of " + nodes.keySet() + ": " + nodeId);
+        }
+        return new Cluster(nodeId, nodes, receiver);
+    }
+
+    // "1=127.0.0.1:9101,2=127.0.0.1:9102"
+    private static Map<Integer, InetSocketAddress> parseNodes(String spec) {
+        Map<Integer, InetSocketAddress> nodes = new TreeMap<>();
+        for (String entry : spec.split(",")) {
+            String[] idAddr = entry.trim().split("=", 2);
+            int colon = idAddr.length == 2 ? idAddr[1].lastIndexOf(':') : -1;
+            if (colon < 0) throw new IllegalArgumentException("Bad chat.cluster.nodes entry, expected id=host:port: " + entry);
+            int id = Integer.parseInt(idAddr[0].trim());
+            if (id < 0 || id > 0xFFFF) throw new IllegalArgumentException("Node id must be 0..65535: " + id);
+            nodes.put(id, InetSocketAddress.createUnresolved(idAddr[1].substring(0, colon).trim(),
+                    Integer.parseInt(idAddr[1].substring(colon + 1).trim())));
+        }
+        return nodes;
+    }
+
+    // =======Functions=======
+
+    // слушаем соседей и начинаем поддерживать связи
+    void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(nodes.get(nodeId).getPort());
+        Thread acceptThread = new Thread(() -> acceptLoop(serverSocket), "chat-cluster-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        scheduler.scheduleWithFixedDelay(this::connectPeers, 0, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+        System.out.println("Cluster node " + nodeId + " of " + nodes.keySet() + ", links on port " + serverSocket.getLocalPort());
+    }
+
+    private void acceptLoop(ServerSocket serverSocket) {
+        try (ServerSocket ss = serverSocket) {
+            while (true) {
+                try {
+                    newLink(ss.accept());
+                } catch (IOException e) {
+                    System.out.println("Cluster link exception: " + e);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Cluster link exception: " + e);
+        }
+    }
+
+    // соединяемся с соседями с большим номером, с которыми связи пока нет
+    private void connectPeers() {
+        for (Map.Entry<Integer, InetSocketAddress> node : nodes.entrySet()) {
+            if (node.getKey() <= nodeId || links.containsKey(node.getKey())) continue;
+            InetSocketAddress address = node.getValue();
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+                newLink(socket);
+            } catch (IOException e) {
+                // сосед еще не запущен - попробуем на следующей проверке
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // обе стороны связи сразу в бинарном протоколе; очередь не клиентская - сообщения не выбрасываются
+    private void newLink(Socket socket) throws IOException {
+        new TCPConnection(this, socket, true, LINK_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+    }
+
+    // отправить сообщение комнаты всем соседям, по одному разу каждому
+    void relay(String room, OutboundMessage message) {
+        if (links.isEmpty()) return;
+        ByteBuffer data = message.getPayload();
+        if (data == null) return;
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + roomBytes.length + 1 + data.remaining());
+        payload.putShort((short) roomBytes.length).put(roomBytes).put(message.getType()).put(data).flip();
+        long messageId = ((long) nodeId << NODE_BITS) | (nextCounter.incrementAndGet() & COUNTER_MASK);
+        // кадр кодируется один раз, соседи пишут его общие байты
+        OutboundMessage frame = OutboundMessage.frame(RELAY, message.getSenderId(), payload).withSeq(messageId);
+        for (TCPConnection link : links.values()) link.send(frame);
+    }
+
+    // сколько соседей сейчас на связи
+    int getLinkCount() {
+        return links.size();
+    }
+
+    // =======События связей между узлами=======
+
+    @Override
+    public void onConnectionReady(TCPConnection tcpConnection) {
+        // через связь идет трафик всех клиентов соседа - клиентские лимиты скорости к ней не применяем
+        tcpConnection.exemptFromRateLimit();
+        // представляемся; связь считается готовой, когда придет NODE_HELLO соседа
+        tcpConnection.send(OutboundMessage.frame(NODE_HELLO, nodeId, ByteBuffer.allocate(0)).withSeq(incarnation));
+    }
+
+    @Override
+    public void onReceiveString(TCPConnection tcpConnection, String value) {
+        // связи между узлами говорят только кадрами
+    }
+
+    @Override
+    public void onReceiveFrame(TCPConnection tcpConnection, byte type, long senderId, long seq, ByteBuffer payload) {
+        if (type == RELAY) {
+            onRelayFrame(tcpConnection, senderId, seq, payload);
+        } else if (type == NODE_HELLO) {
+            onNodeHello(tcpConnection, senderId, seq);
+        }
+    }
+
+    private void onNodeHello(TCPConnection tcpConnection, long peerId, long peerIncarnation) {
+        int peer = (int) peerId;
+        if (peer == nodeId || peerId != peer || !nodes.containsKey(peer)) {
+            System.out.println("Cluster link from unknown node " + peerId + ", closing: " + tcpConnection);
+            tcpConnection.disconnect();
+            return;
+        }
+        // сосед перезапустился - его счетчик сообщений начался заново
+        seen.compute(peer, (k, window) -> window == null || window.incarnation != peerIncarnation ? new DedupWindow(peerIncarnation) : window);
+        linkNodes.put(tcpConnection, peer);
+        TCPConnection old = links.put(peer, tcpConnection);
+        // старая связь с этим узлом еще не успела отвалиться - закрываем ее
+        if (old != null && old != tcpConnection) old.disconnect();
+        System.out.println("Cluster link to node " + peer + " up: " + tcpConnection);
+    }
+
+    private void onRelayFrame(TCPConnection tcpConnection, long senderId, long messageId, ByteBuffer payload) {
+        // кадр до NODE_HELLO - соседу еще не представились
+        if (!linkNodes.containsKey(tcpConnection)) return;
+        DedupWindow window = seen.get((int) (messageId >>> NODE_BITS));
+        if (window == null || !window.firstTime(messageId & COUNTER_MASK)) return;
+        byte[] roomBytes = new byte[payload.getShort()];
+        payload.get(roomBytes);
+        byte messageType = payload.get();
+        // payload - срез буфера чтения, OutboundMessage.frame() копирует данные
+        receiver.onRelay(new String(roomBytes, StandardCharsets.UTF_8), OutboundMessage.frame(messageType, senderId, payload));
+    }
+
+    @Override
+    public void onDisconnect(TCPConnection tcpConnection) {
+        Integer peer = linkNodes.remove(tcpConnection);
+        if (peer == null) return;
+        // узел с меньшим номером переподключится на следующей проверке connectPeers()
+        if (links.remove(peer, tcpConnection)) System.out.println("Cluster link to node " + peer + " down: " + tcpConnection);
+    }
+
+    @Override
+    public void onException(TCPConnection tcpConnection, Exception e) {
+        System.out.println("Cluster link exception: " + e);
+    }
+
+    /** Окно последних номеров сообщений от одного узла: номер уже видели - повтор.
+     *  Номера от узла растут, но из разных потоков могут прийти немного не по порядку,
+     *  поэтому помним последние WINDOW номеров, а более старые считаем повторами.
+     */
+    private static final class DedupWindow {
+        private static final int WINDOW = 4096;
+
+        private final long incarnation;
+        private final long[] ring = new long[WINDOW];
+        private long max;
+
+        DedupWindow(long incarnation) {
+            this.incarnation = incarnation;
+        }
+
+        // true - номер пришел впервые; счетчики начинаются с 1, поэтому 0 в ring - пустая ячейка
+        synchronized boolean firstTime(long counter) {
+            if (counter <= max - WINDOW) return false;
+            int slot = (int) (counter & (WINDOW - 1));
+            if (ring[slot] == counter) return false;
+            ring[slot] = counter;
+            if (counter > max) max = counter;
+            return true;
+        }
+    }
+}
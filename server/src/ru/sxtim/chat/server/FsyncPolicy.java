@@ -0,0 +1,13 @@
+package ru.sxtim.chat.server;
+
+/** FsyncPolicy - когда журнал сообщений принудительно сбрасывает данные на диск;
+ *  Выбирается при запуске: -Dchat.journal.fsync=always|interval|os
+ */
+enum FsyncPolicy {
+    // после каждой записанной пачки (group commit): сообщение на диске до того, как писатель возьмет следующие
+    ALWAYS,
+    // не реже, чем раз в -Dchat.journal.fsyncIntervalMs миллисекунд
+    INTERVAL,
+    // не сбрасывать самим - пусть ОС пишет страницы, когда сочтет нужным
+    OS
+}
@@ -0,0 +1,225 @@
+package ru.sxtim.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/** JournalSegment - один файл журнала сообщений, отображенный в память (MappedByteBuffer);
+ *  Файл создается сразу нужного размера, запись - это копирование в память, без системного вызова.
+ *  Формат записи:
+ *  <pre>
+ *  int   length    - длина записи после поля crc (0 - дальше данных нет)
+ *  int   crc       - CRC32C тела записи: недописанная при падении запись не пройдет проверку
+ *  long  seq       - номер сообщения в комнате
+ *  long  senderId
+ *  byte  type
+ *  short roomLength, byte[] room (UTF-8)
+ *  byte[] payload
+ *  </pre>
+ *  Рядом лежит разреженный индекс (.idx): каждые INDEX_INTERVAL байт пара "номер записи в журнале -> позиция в файле",
+ *  чтобы найти запись по номеру, не читая файл с начала.
+ *  Не потокобезопасен - пишет только поток журнала.
+ */
+final class JournalSegment {
+    //========Fields===========
+    private static final int RECORD_HEADER = 4 + 4;
+    private static final int BODY_HEADER = 8 + 8 + 1 + 2;
+    // как часто (в байтах файла) добавляется запись индекса
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int INDEX_ENTRY = 8 + 4;
+
+    private final Path logPath;
+    private final Path indexPath;
+    // номер первой записи сегмента в журнале
+    private final long baseOffset;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final FileChannel indexChannel;
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY);
+    private final CRC32C crc = new CRC32C();
+    // индекс в памяти: offsets[i] - номер записи, positions[i] - ее позиция в файле
+    private long[] indexOffsets = new long[16];
+    private int[] indexPositions = new int[16];
+    private int indexSize;
+    // куда пишется следующая запись и какой у нее номер
+    private int position;
+    private long nextOffset;
+    // с какой позиции данные еще не сброшены на диск
+    private int dirtyFrom;
+
+    //=============Constructors============
+    private JournalSegment(Path logPath, long baseOffset, int size) throws IOException {
+        this.logPath = logPath;
+        this.indexPath = indexPathFor(logPath);
+        this.baseOffset = baseOffset;
+        this.channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < size) channel.truncate(size);
+        this.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        this.indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.nextOffset = baseOffset;
+    }
+
+    // новый пустой сегмент; имя файла - номер первой записи, чтобы сегменты сортировались по порядку
+    static JournalSegment create(Path dir, long baseOffset, int size) throws IOException {
+        return new JournalSegment(dir.resolve(String.format("%020d.log", baseOffset)), baseOffset, size);
+    }
+
+    // уже существующий сегмент: читаем индекс и находим конец данных
+    static JournalSegment open(Path logPath) throws IOException {
+        String name = logPath.getFileName().toString();
+        long base = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+        JournalSegment segment = new JournalSegment(logPath, base, 0);
+        segment.recoverEnd();
+        return segment;
+    }
+
+    static Path indexPathFor(Path logPath) {
+        String name = logPath.getFileName().toString();
+        return logPath.resolveSibling(name.substring(0, name.length() - ".log".length()) + ".idx");
+    }
+
+    // =======Functions=======
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    long getNextOffset() {
+        return nextOffset;
+    }
+
+    Path getLogPath() {
+        return logPath;
+    }
+
+    // дописать запись; false - не помещается, пора открывать следующий сегмент
+    boolean append(byte[] room, long seq, long senderId, byte type, ByteBuffer payload) throws IOException {
+        int bodyLength = BODY_HEADER + room.length + payload.remaining();
+        // после записи должно остаться место под нулевую длину - признак конца данных
+        if (position + RECORD_HEADER + bodyLength + 4 > map.capacity()) return false;
+        if (indexSize == 0 || position - indexPositions[indexSize - 1] >= INDEX_INTERVAL) addIndex(nextOffset, position, true);
+
+        int bodyStart = position + RECORD_HEADER;
+        map.position(bodyStart);
+        map.putLong(seq).putLong(senderId).put(type).putShort((short) room.length).put(room).put(payload.duplicate());
+        map.putInt(bodyStart - 8, bodyLength);
+        map.putInt(bodyStart - 4, checksum(bodyStart, bodyLength));
+        position = bodyStart + bodyLength;
+        nextOffset++;
+        return true;
+    }
+
+    // сбросить на диск то, что записано после прошлого сброса
+    void force() throws IOException {
+        if (dirtyFrom == position) return;
+        map.force(dirtyFrom, position - dirtyFrom);
+        indexChannel.force(false);
+        dirtyFrom = position;
+    }
+
+    boolean isDirty() {
+        return dirtyFrom != position;
+    }
+
+    // прочитать записи начиная с номера fromOffset (по индексу сразу прыгаем поближе)
+    void read(long fromOffset, MessageJournal.RecordConsumer consumer) {
+        int i = Arrays.binarySearch(indexOffsets, 0, indexSize, fromOffset);
+        if (i < 0) i = -i - 2;
+        int pos = i < 0 ? 0 : indexPositions[i];
+        long offset = i < 0 ? baseOffset : indexOffsets[i];
+        ByteBuffer view = map.duplicate();
+        while (pos < position) {
+            int bodyLength = view.getInt(pos);
+            int bodyStart = pos + RECORD_HEADER;
+            if (offset >= fromOffset) {
+                view.position(bodyStart);
+                long seq = view.getLong();
+                long senderId = view.getLong();
+                byte type = view.get();
+                byte[] room = new byte[view.getShort()];
+                view.get(room);
+                int payloadStart = view.position();
+                consumer.accept(new String(room, StandardCharsets.UTF_8), seq, senderId, type,
+                        view.slice(payloadStart, bodyStart + bodyLength - payloadStart));
+            }
+            pos = bodyStart + bodyLength;
+            offset++;
+        }
+    }
+
+    void close() throws IOException {
+        force();
+        indexChannel.close();
+        channel.close();
+    }
+
+    // удалить файлы сегмента (старые сегменты сверх лимита)
+    void delete() throws IOException {
+        indexChannel.close();
+        channel.close();
+        Files.deleteIfExists(logPath);
+        Files.deleteIfExists(indexPath);
+    }
+
+    private void addIndex(long offset, int pos, boolean write) throws IOException {
+        if (indexSize == indexOffsets.length) {
+            indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+            indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexOffsets[indexSize] = offset;
+        indexPositions[indexSize] = pos;
+        indexSize++;
+        if (write) {
+            indexEntry.clear();
+            indexEntry.putLong(offset).putInt(pos).flip();
+            indexChannel.write(indexEntry, (long) (indexSize - 1) * INDEX_ENTRY);
+        }
+    }
+
+    private int checksum(int from, int length) {
+        crc.reset();
+        crc.update(map.slice(from, length));
+        return (int) crc.getValue();
+    }
+
+    // true - по позиции pos лежит целая запись с правильной контрольной суммой
+    private boolean isValidRecord(int pos) {
+        if (pos + RECORD_HEADER > map.capacity()) return false;
+        int bodyLength = map.getInt(pos);
+        if (bodyLength < BODY_HEADER || pos + RECORD_HEADER + bodyLength > map.capacity()) return false;
+        return map.getInt(pos + 4) == checksum(pos + RECORD_HEADER, bodyLength);
+    }
+
+    // Находим конец данных после перезапуска: от последней правильной записи индекса идем по записям,
+    // пока они проходят проверку. Все, что после (недописанный хвост при падении), обнуляем.
+    private void recoverEnd() throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate((int) indexChannel.size() / INDEX_ENTRY * INDEX_ENTRY);
+        indexChannel.read(entries, 0);
+        entries.flip();
+        while (entries.remaining() >= INDEX_ENTRY) addIndex(entries.getLong(), entries.getInt(), false);
+        while (indexSize > 0 && !isValidRecord(indexPositions[indexSize - 1])) indexSize--;
+        indexChannel.truncate((long) indexSize * INDEX_ENTRY);
+
+        int pos = indexSize == 0 ? 0 : indexPositions[indexSize - 1];
+        long offset = indexSize == 0 ? baseOffset : indexOffsets[indexSize - 1];
+        while (isValidRecord(pos)) {
+            pos += RECORD_HEADER + map.getInt(pos);
+            offset++;
+        }
+        position = pos;
+        dirtyFrom = pos;
+        nextOffset = offset;
+        // чистим мусор недописанной записи, чтобы следующее чтение на нем остановилось
+        if (pos + 4 <= map.capacity() && map.getInt(pos) != 0) {
+            for (int i = pos; i < map.capacity(); i++) map.put(i, (byte) 0);
+            map.force();
+        }
+    }
+}
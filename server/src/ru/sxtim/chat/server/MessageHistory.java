@@ -0,0 +1,66 @@
+package ru.sxtim.chat.server;
+
+import ru.sxtim.chat.network.OutboundMessage;
+
+import java.util.Arrays;
+
+/** MessageHistory - последние N сообщений комнаты в кольцевом буфере;
+ *  Массив выделяется один раз при создании, добавление только кладет ссылку в ячейку - без выделения памяти.
+ *  Хранятся те же OutboundMessage, что ушли при рассылке, поэтому при повторе их байты не кодируются заново.
+ *  Номера сообщений в комнате идут подряд, поэтому ячейка вычисляется из номера: (seq - 1) % N.
+ *  Если подряд они не идут (журнал не смог записать сообщение, и после перезапуска в номерах дыра),
+ *  история начинается заново с нового номера: повтор не должен выдать чужое сообщение на месте потерянного.
+ *  Не потокобезопасен - вызывается под блокировкой комнаты.
+ */
+final class MessageHistory {
+    //========Fields===========
+    private final OutboundMessage[] ring;
+    // номер последнего добавленного сообщения, 0 - истории нет
+    private long lastSeq;
+    // сколько ячеек заполнено (после восстановления из журнала история может начинаться не с 1)
+    private int count;
+
+    //=============Constructors============
+    MessageHistory(int capacity) {
+        ring = new OutboundMessage[capacity];
+    }
+
+    // =======Functions=======
+
+    void add(OutboundMessage message) {
+        if (ring.length == 0) return;
+        if (count > 0 && message.getSeq() != lastSeq + 1) {
+            Arrays.fill(ring, null);
+            count = 0;
+        }
+        lastSeq = message.getSeq();
+        ring[(int) ((lastSeq - 1) % ring.length)] = message;
+        if (count < ring.length) count++;
+    }
+
+    long getLastSeq() {
+        return lastSeq;
+    }
+
+    // номер самого старого сообщения, которое еще хранится
+    long getFirstSeq() {
+        return lastSeq - count + 1;
+    }
+
+    /**
+     * Сообщения с номером больше sinceSeq одним пакетом;
+     * null - повторять нечего. Если часть уже вытеснена, отдаем то, что осталось.
+     */
+    OutboundMessage since(long sinceSeq) {
+        long from = Math.max(sinceSeq + 1, getFirstSeq());
+        if (count == 0 || from > lastSeq) return null;
+        // собираем по порядку номеров; ячейку берем, только если в ней сообщение именно с этим номером
+        OutboundMessage[] ordered = new OutboundMessage[(int) (lastSeq - from + 1)];
+        int n = 0;
+        for (long seq = from; seq <= lastSeq; seq++) {
+            OutboundMessage message = ring[(int) ((seq - 1) % ring.length)];
+            if (message != null && message.getSeq() == seq) ordered[n++] = message;
+        }
+        return n == 0 ? null : OutboundMessage.batch(ordered, 0, n);
+    }
+}
@@ -0,0 +1,181 @@
+package ru.sxtim.chat.server;
+
+import ru.sxtim.chat.network.OutboundMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/** MessageJournal - журнал сообщений комнат на диске, только дописывание в конец;
+ *  Сообщения пишутся в сегменты JournalSegment (файлы, отображенные в память) фиксированного размера,
+ *  когда сегмент заполнен - открывается следующий, самые старые сверх лимита удаляются.
+ *  Комната только кладет сообщение в очередь (append() не блокируется), а пишет отдельный поток журнала,
+ *  пачками - поэтому потоки приема не ждут диск. После перезапуска recover() возвращает сообщения,
+ *  и комнаты восстанавливают историю и номера.
+ *  Включается свойством -Dchat.journal.dir=путь.
+ */
+final class MessageJournal implements Closeable {
+
+    // получатель записей при чтении журнала; payload действителен только во время вызова
+    interface RecordConsumer {
+        void accept(String room, long seq, long senderId, byte type, ByteBuffer payload);
+    }
+
+    //========Fields===========
+    // сколько записей писатель забирает из очереди за раз
+    private static final int MAX_DRAIN = 1024;
+    // метка в очереди: все, что до нее, дописать и остановиться (прерывать поток нельзя - прерывание закрывает FileChannel)
+    private static final Entry STOP = new Entry(null, null);
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+    // сообщения, ждущие записи; без ограничения, чтобы комната никогда не ждала журнал
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final ArrayDeque<JournalSegment> segments = new ArrayDeque<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    private long lastForceNanos = System.nanoTime();
+
+    //=============Constructors============
+    MessageJournal(Path dir, int segmentSize, int maxSegments, FsyncPolicy fsyncPolicy, long fsyncIntervalMs) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMs));
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> list = Files.list(dir)) {
+            list.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().forEach(files::add);
+        }
+        for (Path file : files) segments.add(JournalSegment.open(file));
+        if (segments.isEmpty()) segments.add(JournalSegment.create(dir, 0, segmentSize));
+        writer = new Thread(this::writeLoop, "chat-journal");
+        writer.setDaemon(true);
+    }
+
+    // журнал по свойствам chat.journal.*; null - журнал не включен
+    static MessageJournal fromProperties() throws IOException {
+        String dir = System.getProperty("chat.journal.dir");
+        if (dir == null) return null;
+        return new MessageJournal(Paths.get(dir),
+                Integer.getInteger("chat.journal.segmentSize", 64 * 1024 * 1024),
+                Integer.getInteger("chat.journal.maxSegments", 16),
+                FsyncPolicy.valueOf(System.getProperty("chat.journal.fsync", "interval").trim().toUpperCase()),
+                Long.getLong("chat.journal.fsyncIntervalMs", 100));
+    }
+
+    // =======Functions=======
+
+    // прочитать весь журнал (до start())
+    void recover(RecordConsumer consumer) {
+        for (JournalSegment segment : segments) segment.read(segment.getBaseOffset(), consumer);
+    }
+
+    void start() {
+        writer.start();
+    }
+
+    // поставить сообщение комнаты в очередь на запись; не блокируется
+    void append(String room, OutboundMessage message) {
+        if (running) queue.add(new Entry(room, message));
+    }
+
+    // дописать очередь, сбросить на диск и закрыть
+    @Override
+    public void close() throws IOException {
+        running = false;
+        queue.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (JournalSegment segment : segments) segment.close();
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_DRAIN);
+        long waitNanos = fsyncPolicy == FsyncPolicy.INTERVAL ? fsyncIntervalNanos : TimeUnit.SECONDS.toNanos(1);
+        boolean stopped = false;
+        while (!stopped) {
+            try {
+                Entry first = queue.poll(waitNanos, TimeUnit.NANOSECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_DRAIN - 1);
+                    for (Entry entry : batch) {
+                        if (entry == STOP) stopped = true;
+                        else writeSafely(entry);
+                    }
+                    batch.clear();
+                }
+                maybeForce();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Journal exception: " + e);
+            }
+        }
+    }
+
+    // ошибка одной записи теряет только ее: остальная пачка (и STOP) обрабатывается дальше
+    private void writeSafely(Entry entry) {
+        try {
+            write(entry);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Journal exception: " + e + ", lost message " + entry.message.getSeq() + " of room " + entry.room);
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        OutboundMessage message = entry.message;
+        byte[] room = entry.room.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = message.getPayload();
+        JournalSegment active = segments.getLast();
+        if (active.append(room, message.getSeq(), message.getSenderId(), message.getType(), payload)) return;
+        // сегмент заполнен - закрываем его и начинаем следующий
+        active.close();
+        JournalSegment next = JournalSegment.create(dir, active.getNextOffset(), segmentSize);
+        segments.add(next);
+        while (segments.size() > maxSegments) segments.removeFirst().delete();
+        if (!next.append(room, message.getSeq(), message.getSenderId(), message.getType(), payload)) {
+            throw new IOException("Message does not fit into a journal segment: " + payload.remaining() + " bytes");
+        }
+    }
+
+    private void maybeForce() throws IOException {
+        JournalSegment active = segments.getLast();
+        if (!active.isDirty()) return;
+        long now = System.nanoTime();
+        if (fsyncPolicy == FsyncPolicy.ALWAYS || (fsyncPolicy == FsyncPolicy.INTERVAL && now - lastForceNanos >= fsyncIntervalNanos)) {
+            active.force();
+            lastForceNanos = now;
+        }
+    }
+
+    // сообщение в очереди на запись
+    private static final class Entry {
+        final String room;
+        final OutboundMessage message;
+
+        Entry(String room, OutboundMessage message) {
+            this.room = room;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package ru.sxtim.chat.server;
+
+import ru.sxtim.chat.network.OutboundMessage;
+import ru.sxtim.chat.network.TCPConnection;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Room - комната (канал) чата: сообщение уходит только ее участникам, а не всем подключенным;
+ *  Поэтому стоимость рассылки растет с размером комнаты, а не с числом клиентов на сервере.
+ *  Каждое сообщение получает номер в комнате (seq) и попадает в историю последних сообщений.
+ *  Номер, история и постановка в очереди участников делаются под блокировкой комнаты:
+ *  так все участники видят сообщения в одном порядке, а вошедший получает историю до seq X
+ *  и дальше живые сообщения с X + 1 - без пропусков и повторов. Под блокировкой нет записи в сокет,
+ *  только TCPConnection.send() в очередь, а разные комнаты друг друга не блокируют.
+ */
+final class Room {
+    //========Fields===========
+    // сколько последних сообщений помнит комната (-Dchat.history.size, 0 - не помнить)
+    private static final int HISTORY_SIZE = Integer.getInteger("chat.history.size", 100);
+
+    private final String name;
+    // участники; обход без блокировок
+    private final Set<TCPConnection> members = ConcurrentHashMap.newKeySet();
+    private final MessageHistory history = new MessageHistory(HISTORY_SIZE);
+    private final ReentrantLock lock = new ReentrantLock();
+    // журнал на диске, null - не включен
+    private final MessageJournal journal;
+    private long lastSeq;
+    // с какого момента (System.nanoTime()) в комнате нет участников
+    private long emptySinceNanos = System.nanoTime();
+    // комната удалена из RoomRegistry - рассылать в нее больше нечего
+    private boolean retired;
+
+    //=============Constructors============
+    Room(String name, MessageJournal journal) {
+        this(name, journal, 0);
+    }
+
+    // lastSeq - номер, на котором остановилась прежняя комната с этим названием (RoomRegistry помнит его)
+    Room(String name, MessageJournal journal, long lastSeq) {
+        this.name = name;
+        this.journal = journal;
+        this.lastSeq = lastSeq;
+    }
+
+    // =======Functions=======
+
+    String getName() {
+        return name;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    // добавить участника и отправить ему историю; false - уже был в комнате
+    boolean add(TCPConnection connection) {
+        lock.lock();
+        try {
+            if (!members.add(connection)) return false;
+            replay(connection, 0);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean remove(TCPConnection connection) {
+        lock.lock();
+        try {
+            if (!members.remove(connection)) return false;
+            if (members.isEmpty()) emptySinceNanos = System.nanoTime();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    long getLastSeq() {
+        lock.lock();
+        try {
+            return lastSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Удалить ли комнату из RoomRegistry: в ней нет участников, и либо не было ни одного сообщения,
+     * либо она пустует не меньше retainNanos (пока не истек срок, вернувшийся получит историю).
+     * true - комната больше не принимает рассылки; ее последний номер RoomRegistry сохранит отдельно.
+     */
+    boolean retireIfIdle(long retainNanos) {
+        lock.lock();
+        try {
+            if (!members.isEmpty()) return false;
+            if (lastSeq > 0 && System.nanoTime() - emptySinceNanos < retainNanos) return false;
+            retired = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // разослать участникам под следующим номером; сообщение кодируется один раз на всех
+    void broadcast(OutboundMessage message) {
+        lock.lock();
+        try {
+            // рассылка успела взять комнату до удаления: участников нет, номер не тратим
+            if (retired) return;
+            final long start = System.nanoTime();
+            OutboundMessage numbered = message.withSeq(++lastSeq);
+            history.add(numbered);
+            // журнал только ставит в свою очередь - порядок записей в комнате тот же, что у номеров
+            if (journal != null) journal.append(name, numbered);
+            int recipients = 0;
+            for (TCPConnection member : members) {
+                member.send(numbered);
+                recipients++;
+            }
+            ServerMetrics.BROADCAST_TIME.record(System.nanoTime() - start);
+            ServerMetrics.BROADCASTS.increment();
+            ServerMetrics.BROADCAST_RECIPIENTS.add(recipients);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // сообщение из журнала после перезапуска: в историю и номер, без рассылки
+    void restore(OutboundMessage message) {
+        lock.lock();
+        try {
+            if (message.getSeq() <= lastSeq) return;
+            lastSeq = message.getSeq();
+            history.add(message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // повторить клиенту сообщения после sinceSeq одной записью; false - повторять нечего
+    boolean replay(TCPConnection connection, long sinceSeq) {
+        lock.lock();
+        try {
+            OutboundMessage backlog = history.since(sinceSeq);
+            if (backlog == null) return false;
+            connection.send(backlog);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
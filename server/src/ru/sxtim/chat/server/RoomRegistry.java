@@ -0,0 +1,153 @@
+package ru.sxtim.chat.server;
+
+import ru.sxtim.chat.network.OutboundMessage;
+import ru.sxtim.chat.network.TCPConnection;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/** RoomRegistry - индекс "название комнаты -> участники";
+ *  Вход и выход меняют только свою комнату: compute() в ConcurrentHashMap блокирует одну корзину,
+ *  поэтому разные комнаты обновляются параллельно, а рассылка вообще не блокируется.
+ *  Пустая комната удаляется (кроме DEFAULT_ROOM), чтобы тысячи брошенных комнат не копились в памяти:
+ *  без сообщений - сразу, с сообщениями - пробыв пустой -Dchat.rooms.retainMs (по умолчанию 10 минут),
+ *  чтобы вернувшиеся успели получить историю. От удаленной комнаты остается только ее последний номер
+ *  (не больше -Dchat.rooms.maxTombstones названий): комната, созданная заново, продолжит номера, а не начнет с 1.
+ *  Вытесненные из этого списка номера поднимают общий нижний порог, с которого начинаются новые комнаты, -
+ *  поэтому номера в комнате с одним названием никогда не повторяются.
+ *  Сроки проверяются без отдельного потока - при входе и выходе, с головы очереди опустевших комнат.
+ */
+final class RoomRegistry {
+    //========Fields===========
+    // комната, в которую попадает каждый новый клиент
+    static final String DEFAULT_ROOM = "main";
+    private static final int MAX_NAME_LENGTH = 64;
+    private static final long RETAIN_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("chat.rooms.retainMs", 600_000));
+    private static final int MAX_TOMBSTONES = Math.max(1, Integer.getInteger("chat.rooms.maxTombstones", 100_000));
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    // журнал сообщений, null - не включен
+    private final MessageJournal journal;
+    // опустевшие комнаты с сообщениями в порядке опустения - кандидаты на удаление
+    private final ConcurrentLinkedQueue<Emptied> emptied = new ConcurrentLinkedQueue<>();
+    // "название удаленной комнаты -> ее последний номер", от старых к новым; под своим монитором
+    private final LinkedHashMap<String, Long> tombstones = new LinkedHashMap<>();
+    // самый большой номер среди вытесненных из tombstones - с него начинается комната без записи
+    private long seqFloor;
+
+    //=============Constructors============
+    RoomRegistry(MessageJournal journal) {
+        this.journal = journal;
+    }
+
+    // =======Functions=======
+
+    // допустимое ли название: непустое, без пробелов и не слишком длинное
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) return false;
+        for (int i = 0; i < name.length(); i++) if (Character.isWhitespace(name.charAt(i))) return false;
+        return true;
+    }
+
+    // войти в комнату (создается, если ее нет); возвращает комнату
+    Room join(String name, TCPConnection connection) {
+        evictExpired();
+        return rooms.compute(name, (key, room) -> {
+            if (room == null) room = newRoom(key);
+            room.add(connection);
+            return room;
+        });
+    }
+
+    // выйти из комнаты; false - клиента в ней не было
+    boolean leave(String name, TCPConnection connection) {
+        evictExpired();
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(name, (key, room) -> {
+            removed[0] = room.remove(connection);
+            if (!removed[0] || DEFAULT_ROOM.equals(key) || !room.isEmpty()) return room;
+            if (room.retireIfIdle(RETAIN_NANOS)) return bury(room);
+            emptied.add(new Emptied(key, System.nanoTime()));
+            return room;
+        });
+        return removed[0];
+    }
+
+    // вернуть сообщение из журнала в его комнату (при запуске сервера)
+    void restore(String name, OutboundMessage message) {
+        rooms.computeIfAbsent(name, key -> {
+            // восстановленная комната пуста - стареет, как опустевшая сейчас
+            if (!DEFAULT_ROOM.equals(key)) emptied.add(new Emptied(key, System.nanoTime()));
+            return newRoom(key);
+        }).restore(message);
+    }
+
+    // удаляем комнаты, которые пробыли пустыми дольше RETAIN_NANOS; вызывать не внутри compute()
+    private void evictExpired() {
+        final long now = System.nanoTime();
+        Emptied head;
+        while ((head = emptied.peek()) != null && now - head.sinceNanos >= RETAIN_NANOS) {
+            // голову мог забрать другой поток
+            if (!emptied.remove(head)) continue;
+            // в комнату могли вернуться (или она опустела снова позже) - тогда retireIfIdle откажет
+            rooms.computeIfPresent(head.name, (key, room) -> room.retireIfIdle(RETAIN_NANOS) ? bury(room) : room);
+        }
+    }
+
+    // новая комната продолжает номера удаленной комнаты с тем же названием
+    private Room newRoom(String name) {
+        long lastSeq;
+        synchronized (tombstones) {
+            Long seq = tombstones.remove(name);
+            lastSeq = seq != null ? seq : seqFloor;
+        }
+        return new Room(name, journal, lastSeq);
+    }
+
+    // запоминаем последний номер удаленной комнаты; всегда null - для compute()
+    private Room bury(Room room) {
+        long lastSeq = room.getLastSeq();
+        if (lastSeq == 0) return null;
+        synchronized (tombstones) {
+            tombstones.put(room.getName(), lastSeq);
+            if (tombstones.size() > MAX_TOMBSTONES) {
+                Iterator<Long> eldest = tombstones.values().iterator();
+                seqFloor = Math.max(seqFloor, eldest.next());
+                eldest.remove();
+            }
+        }
+        return null;
+    }
+
+    // null - такой комнаты нет
+    Room get(String name) {
+        return rooms.get(name);
+    }
+
+    int count() {
+        return rooms.size();
+    }
+
+    // снимок "название -> число участников" для команды /rooms
+    Map<String, Integer> sizes() {
+        Map<String, Integer> result = new TreeMap<>();
+        for (Room room : rooms.values()) result.put(room.getName(), room.size());
+        return result;
+    }
+
+    // опустевшая комната и с какого момента (System.nanoTime())
+    private static final class Emptied {
+        final String name;
+        final long sinceNanos;
+
+        Emptied(String name, long sinceNanos) {
+            this.name = name;
+            this.sinceNanos = sinceNanos;
+        }
+    }
+}
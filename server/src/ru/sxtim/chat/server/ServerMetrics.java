@@ -0,0 +1,289 @@
+package ru.sxtim.chat.server;
+
+import com.sun.net.httpserver.HttpServer;
+import ru.sxtim.chat.network.Histogram;
+import ru.sxtim.chat.network.NetworkMetrics;
+import ru.sxtim.chat.network.TCPConnection;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** ServerMetrics - метрики сервера: счетчики соединений (NetworkMetrics), рассылки по комнатам и очереди отправки;
+ *  Горячий путь только увеличивает LongAdder и пишет в Histogram. Все, что дороже, -
+ *  скорости, обход очередей соединений, процентили - считается при чтении метрик.
+ *  Доступны через JMX (ru.sxtim.chat:type=ChatServer) и текстом по HTTP: -Dchat.metrics.port=8190,
+ *  затем curl http://host:8190/metrics.
+ */
+final class ServerMetrics implements ServerMetricsMBean {
+    //========Fields===========
+    // сколько длится Room.broadcast: номер, история, журнал и постановка сообщения во все очереди участников
+    static final Histogram BROADCAST_TIME = new Histogram();
+    static final LongAdder BROADCASTS = new LongAdder();
+    // сумма получателей по всем рассылкам - средний fan-out = BROADCAST_RECIPIENTS / BROADCASTS
+    static final LongAdder BROADCAST_RECIPIENTS = new LongAdder();
+
+    private static final int HTTP_PORT = Integer.getInteger("chat.metrics.port", 0);
+
+    private final Map<TCPConnection, ?> connections;
+    private final RoomRegistry rooms;
+    // null - сервер без кластера
+    private final Cluster cluster;
+    // значения счетчиков секунду назад и скорости за последнюю секунду; обновляет поток chat-metrics
+    private long lastMessagesIn, lastMessagesOut, lastBytesIn, lastBytesOut;
+    private volatile long messagesInRate, messagesOutRate, bytesInRate, bytesOutRate;
+
+    //=============Constructors============
+    ServerMetrics(Map<TCPConnection, ?> connections, RoomRegistry rooms, Cluster cluster) {
+        this.connections = connections;
+        this.rooms = rooms;
+        this.cluster = cluster;
+    }
+
+    // =======Functions=======
+
+    // регистрируем MBean, запускаем подсчет скоростей и, если задан порт, HTTP
+    void start() throws IOException {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("ru.sxtim.chat:type=ChatServer"));
+        } catch (JMException e) {
+            throw new IOException("Cannot register metrics MBean", e);
+        }
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "chat-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sampleRates, 1, 1, TimeUnit.SECONDS);
+        if (HTTP_PORT > 0) startHttp();
+    }
+
+    private void startHttp() throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(HTTP_PORT), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = dump().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "chat-metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        http.start();
+        System.out.println("Metrics on http://localhost:" + HTTP_PORT + "/metrics");
+    }
+
+    private void sampleRates() {
+        long messagesIn = NetworkMetrics.getMessagesIn();
+        long messagesOut = NetworkMetrics.getMessagesOut();
+        long bytesIn = NetworkMetrics.getBytesIn();
+        long bytesOut = NetworkMetrics.getBytesOut();
+        messagesInRate = messagesIn - lastMessagesIn;
+        messagesOutRate = messagesOut - lastMessagesOut;
+        bytesInRate = bytesIn - lastBytesIn;
+        bytesOutRate = bytesOut - lastBytesOut;
+        lastMessagesIn = messagesIn;
+        lastMessagesOut = messagesOut;
+        lastBytesIn = bytesIn;
+        lastBytesOut = bytesOut;
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return NetworkMetrics.getConnectionsOpened();
+    }
+
+    @Override
+    public int getRooms() {
+        return rooms.count();
+    }
+
+    @Override
+    public int getClusterLinks() {
+        return cluster == null ? 0 : cluster.getLinkCount();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return NetworkMetrics.getMessagesIn();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return NetworkMetrics.getMessagesOut();
+    }
+
+    @Override
+    public long getMessagesInPerSecond() {
+        return messagesInRate;
+    }
+
+    @Override
+    public long getMessagesOutPerSecond() {
+        return messagesOutRate;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return NetworkMetrics.getBytesIn();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return NetworkMetrics.getBytesOut();
+    }
+
+    @Override
+    public long getBytesInPerSecond() {
+        return bytesInRate;
+    }
+
+    @Override
+    public long getBytesOutPerSecond() {
+        return bytesOutRate;
+    }
+
+    @Override
+    public long getDroppedMessages() {
+        return NetworkMetrics.getDropped();
+    }
+
+    @Override
+    public long getIdleTimeouts() {
+        return NetworkMetrics.getTimeouts();
+    }
+
+    @Override
+    public long getRateLimitedMessages() {
+        return NetworkMetrics.getRateLimited();
+    }
+
+    @Override
+    public long getThrottlePauses() {
+        return NetworkMetrics.getThrottled();
+    }
+
+    // обход всех соединений - только при чтении метрики
+    @Override
+    public long getQueueDepthTotal() {
+        long total = 0;
+        for (TCPConnection connection : connections.keySet()) total += connection.getQueueDepth();
+        return total;
+    }
+
+    @Override
+    public int getQueueDepthMax() {
+        int max = 0;
+        for (TCPConnection connection : connections.keySet()) max = Math.max(max, connection.getQueueDepth());
+        return max;
+    }
+
+    @Override
+    public long getBroadcasts() {
+        return BROADCASTS.sum();
+    }
+
+    @Override
+    public long getBroadcastRecipients() {
+        return BROADCAST_RECIPIENTS.sum();
+    }
+
+    @Override
+    public long getBroadcastP50Micros() {
+        return micros(BROADCAST_TIME.snapshot().percentile(50));
+    }
+
+    @Override
+    public long getBroadcastP99Micros() {
+        return micros(BROADCAST_TIME.snapshot().percentile(99));
+    }
+
+    @Override
+    public long getBroadcastMaxMicros() {
+        return micros(BROADCAST_TIME.snapshot().getMax());
+    }
+
+    @Override
+    public long getSendLatencyP50Micros() {
+        return micros(NetworkMetrics.getSendLatency().percentile(50));
+    }
+
+    @Override
+    public long getSendLatencyP99Micros() {
+        return micros(NetworkMetrics.getSendLatency().percentile(99));
+    }
+
+    @Override
+    public long getSendLatencyP999Micros() {
+        return micros(NetworkMetrics.getSendLatency().percentile(99.9));
+    }
+
+    @Override
+    public long getSendLatencyMaxMicros() {
+        return micros(NetworkMetrics.getSendLatency().getMax());
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder(1024);
+        line(sb, "connections_active", getActiveConnections());
+        line(sb, "connections_opened_total", getConnectionsOpened());
+        line(sb, "connections_closed_total", NetworkMetrics.getConnectionsClosed());
+        line(sb, "connections_idle_timeouts_total", getIdleTimeouts());
+        line(sb, "rooms", getRooms());
+        line(sb, "cluster_links", getClusterLinks());
+        line(sb, "messages_in_total", getMessagesIn());
+        line(sb, "messages_out_total", getMessagesOut());
+        line(sb, "messages_in_per_second", getMessagesInPerSecond());
+        line(sb, "messages_out_per_second", getMessagesOutPerSecond());
+        line(sb, "bytes_in_total", getBytesIn());
+        line(sb, "bytes_out_total", getBytesOut());
+        line(sb, "bytes_in_per_second", getBytesInPerSecond());
+        line(sb, "bytes_out_per_second", getBytesOutPerSecond());
+        line(sb, "messages_dropped_total", getDroppedMessages());
+        line(sb, "messages_rate_limited_total", getRateLimitedMessages());
+        line(sb, "throttle_pauses_total", getThrottlePauses());
+        line(sb, "queue_depth_total", getQueueDepthTotal());
+        line(sb, "queue_depth_max", getQueueDepthMax());
+        line(sb, "broadcasts_total", getBroadcasts());
+        line(sb, "broadcast_recipients_total", getBroadcastRecipients());
+        histogram(sb, "broadcast_time", BROADCAST_TIME.snapshot());
+        histogram(sb, "send_latency", NetworkMetrics.getSendLatency());
+        return sb.toString();
+    }
+
+    private static void histogram(StringBuilder sb, String name, Histogram.Snapshot snapshot) {
+        line(sb, name + "_count", snapshot.getCount());
+        line(sb, name + "_mean_micros", micros(snapshot.getMean()));
+        line(sb, name + "_p50_micros", micros(snapshot.percentile(50)));
+        line(sb, name + "_p99_micros", micros(snapshot.percentile(99)));
+        line(sb, name + "_p999_micros", micros(snapshot.percentile(99.9)));
+        line(sb, name + "_max_micros", micros(snapshot.getMax()));
+    }
+
+    private static void line(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
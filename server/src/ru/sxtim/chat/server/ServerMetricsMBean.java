@@ -0,0 +1,63 @@
+package ru.sxtim.chat.server;
+
+/** ServerMetricsMBean - метрики сервера в JMX (ru.sxtim.chat:type=ChatServer), например для jconsole;
+ *  Скорости "в секунду" - за последнюю полную секунду, задержки - в микросекундах за все время работы.
+ */
+public interface ServerMetricsMBean {
+    int getActiveConnections();
+
+    long getConnectionsOpened();
+
+    int getRooms();
+
+    int getClusterLinks();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getMessagesInPerSecond();
+
+    long getMessagesOutPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBytesInPerSecond();
+
+    long getBytesOutPerSecond();
+
+    long getDroppedMessages();
+
+    long getIdleTimeouts();
+
+    long getRateLimitedMessages();
+
+    long getThrottlePauses();
+
+    long getQueueDepthTotal();
+
+    int getQueueDepthMax();
+
+    long getBroadcasts();
+
+    long getBroadcastRecipients();
+
+    long getBroadcastP50Micros();
+
+    long getBroadcastP99Micros();
+
+    long getBroadcastMaxMicros();
+
+    long getSendLatencyP50Micros();
+
+    long getSendLatencyP99Micros();
+
+    long getSendLatencyP999Micros();
+
+    long getSendLatencyMaxMicros();
+
+    // все метрики текстом, по одной "имя значение" на строку
+    String dump();
+}
@@ -0,0 +1,85 @@
+package ru.sxtim.chat.server;
+
+import org.junit.jupiter.api.Test;
+import ru.sxtim.chat.network.OutboundMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/** MessageHistoryTest - кольцо истории комнаты: повтор после seq через конец массива и через дыры в номерах */
+class MessageHistoryTest {
+
+    private static OutboundMessage message(long seq) {
+        return OutboundMessage.text(0, "m" + seq).withSeq(seq);
+    }
+
+    private static void add(MessageHistory history, long from, long to) {
+        for (long seq = from; seq <= to; seq++) history.add(message(seq));
+    }
+
+    // номера сообщений в пакете, который вернул since()
+    private static List<Long> seqs(OutboundMessage batch) {
+        List<Long> result = new ArrayList<>();
+        if (batch == null) return result;
+        for (OutboundMessage part : batch.getParts()) result.add(part.getSeq());
+        return result;
+    }
+
+    @Test
+    void emptyHistoryHasNothingToReplay() {
+        MessageHistory history = new MessageHistory(4);
+        assertNull(history.since(0));
+    }
+
+    @Test
+    void replaysInOrderWithinCapacity() {
+        MessageHistory history = new MessageHistory(4);
+        add(history, 1, 3);
+        assertEquals(List.of(1L, 2L, 3L), seqs(history.since(0)));
+        assertEquals(List.of(3L), seqs(history.since(2)));
+        assertNull(history.since(3));
+    }
+
+    @Test
+    void replaysAcrossRingWrap() {
+        MessageHistory history = new MessageHistory(4);
+        add(history, 1, 10);
+        // хранятся 7..10, ячейки 3, 0, 1 - кусок переходит через конец массива
+        assertEquals(7, history.getFirstSeq());
+        assertEquals(List.of(7L, 8L, 9L, 10L), seqs(history.since(0)));
+        assertEquals(List.of(9L, 10L), seqs(history.since(8)));
+        assertNull(history.since(10));
+    }
+
+    @Test
+    void seqGapRestartsHistory() {
+        MessageHistory history = new MessageHistory(4);
+        add(history, 1, 3);
+        // журнал потерял 4 - после перезапуска приходит 5
+        add(history, 5, 6);
+        assertEquals(5, history.getFirstSeq());
+        assertEquals(List.of(5L, 6L), seqs(history.since(0)));
+        assertEquals(List.of(5L, 6L), seqs(history.since(3)));
+    }
+
+    @Test
+    void seqGapAfterWrapDoesNotReplayStaleSlots() {
+        MessageHistory history = new MessageHistory(4);
+        add(history, 1, 6);
+        // 7 и 8 потеряны; ячейки 8 и 9 раньше занимали 4 и 5
+        add(history, 9, 10);
+        assertEquals(List.of(9L, 10L), seqs(history.since(0)));
+        add(history, 11, 14);
+        assertEquals(List.of(11L, 12L, 13L, 14L), seqs(history.since(0)));
+    }
+
+    @Test
+    void zeroCapacityKeepsNothing() {
+        MessageHistory history = new MessageHistory(0);
+        add(history, 1, 3);
+        assertNull(history.since(0));
+    }
+}
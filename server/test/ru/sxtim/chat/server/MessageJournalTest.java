@@ -0,0 +1,128 @@
+package ru.sxtim.chat.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.sxtim.chat.network.OutboundMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/** MessageJournalTest - восстановление журнала после обрыва записи посреди сегмента и после потери индекса */
+class MessageJournalTest {
+    private static final String ROOM = "general";
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int COUNT = 300;
+    // int length | int crc | long seq | long senderId | byte type | short roomLen | room | payload ("m0001")
+    private static final int RECORD_SIZE = 4 + 4 + 8 + 8 + 1 + 2 + ROOM.length() + 5;
+
+    @TempDir
+    Path dir;
+
+    private static OutboundMessage message(long seq) {
+        return OutboundMessage.text(7, String.format("m%04d", seq)).withSeq(seq);
+    }
+
+    private MessageJournal open() throws IOException {
+        return new MessageJournal(dir, SEGMENT_SIZE, 4, FsyncPolicy.OS, 100);
+    }
+
+    private void write(long from, long to) throws IOException {
+        MessageJournal journal = open();
+        journal.start();
+        for (long seq = from; seq <= to; seq++) journal.append(ROOM, message(seq));
+        journal.close();
+    }
+
+    // номера всех восстановленных записей; заодно проверяем, что тело каждой цело
+    private List<Long> recover() throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        MessageJournal journal = open();
+        journal.recover((room, seq, senderId, type, payload) -> {
+            assertEquals(ROOM, room);
+            assertEquals(7, senderId);
+            assertEquals(String.format("m%04d", seq), StandardCharsets.UTF_8.decode(payload).toString());
+            seqs.add(seq);
+        });
+        journal.close();
+        return seqs;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> result = new ArrayList<>();
+        for (long seq = from; seq <= to; seq++) result.add(seq);
+        return result;
+    }
+
+    private Path firstSegment() throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.filter(p -> p.getFileName().toString().endsWith(".log")).sorted().findFirst().orElseThrow();
+        }
+    }
+
+    @Test
+    void recoversEverythingAfterCleanClose() throws IOException {
+        write(1, COUNT);
+        assertEquals(range(1, COUNT), recover());
+    }
+
+    @Test
+    void fileTruncatedMidRecordKeepsCompleteRecords() throws IOException {
+        write(1, COUNT);
+        try (FileChannel channel = FileChannel.open(firstSegment(), StandardOpenOption.WRITE)) {
+            channel.truncate((long) RECORD_SIZE * (COUNT - 1) + RECORD_SIZE / 2);
+        }
+        assertEquals(range(1, COUNT - 1), recover());
+
+        // после обрыва журнал пишется дальше, и номера записей не съезжают
+        write(COUNT, COUNT + 10);
+        assertEquals(range(1, COUNT + 10), recover());
+    }
+
+    @Test
+    void tornTailInsidePreallocatedSegmentIsDiscarded() throws IOException {
+        write(1, COUNT);
+        // запись успела только наполовину: длина на месте, хвост тела - нули
+        try (FileChannel channel = FileChannel.open(firstSegment(), StandardOpenOption.WRITE)) {
+            long from = (long) RECORD_SIZE * (COUNT - 1) + RECORD_SIZE / 2;
+            channel.write(ByteBuffer.allocate(RECORD_SIZE - RECORD_SIZE / 2), from);
+        }
+        assertEquals(range(1, COUNT - 1), recover());
+
+        write(COUNT, COUNT + 10);
+        assertEquals(range(1, COUNT + 10), recover());
+    }
+
+    @Test
+    void corruptedRecordAfterLastIndexEntryEndsRecovery() throws IOException {
+        write(1, COUNT);
+        // испорчен payload записи 290 (после последней пары индекса) - контрольная сумма не сходится, дальше не читаем
+        try (FileChannel channel = FileChannel.open(firstSegment(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'x'}), (long) RECORD_SIZE * 290 - 1);
+        }
+        assertEquals(range(1, 289), recover());
+    }
+
+    @Test
+    void lostOrTornIndexIsRebuiltFromRecords() throws IOException {
+        write(1, COUNT);
+        Path index = JournalSegment.indexPathFor(firstSegment());
+        // обрыв посреди пары индекса
+        try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+            channel.truncate(12 + 5);
+        }
+        assertEquals(range(1, COUNT), recover());
+
+        Files.delete(index);
+        assertEquals(range(1, COUNT), recover());
+    }
+}